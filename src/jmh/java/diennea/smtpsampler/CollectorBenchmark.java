@@ -0,0 +1,102 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import diennea.smtpsampler.collectors.ConsoleResultCollector;
+
+/**
+ * Recording methods of {@link ConsoleResultCollector}, invoked by every
+ * sender and receiver thread for every message
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollectorBenchmark
+{
+    private static final String RESPONSE = "250 2.0.0 Ok: queued as 4BDC21C0E8F\r\n";
+
+    private ResultCollector collector;
+
+    @Setup
+    public void setup()
+    {
+        collector = new ConsoleResultCollector(false, true);
+        collector.start();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void messageSent()
+    {
+        collector.messageSent(1, 1, 1_000_000, RESPONSE, null);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void messageSent8Threads()
+    {
+        collector.messageSent(1, 1, 1_000_000, RESPONSE, null);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void connectionHandled()
+    {
+        collector.connectionHandled(1, 1_000_000, null);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void connectionHandled8Threads()
+    {
+        collector.connectionHandled(1, 1_000_000, null);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void messageReceived()
+    {
+        collector.messageReceived(3_000_000, 1_000_000, 2_000_000);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void messageReceived8Threads()
+    {
+        collector.messageReceived(3_000_000, 1_000_000, 2_000_000);
+    }
+}
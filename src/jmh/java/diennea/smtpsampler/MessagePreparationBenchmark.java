@@ -0,0 +1,140 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import diennea.smtpsampler.collectors.CompositeResultCollector;
+
+/**
+ * Per message work of {@link SendMessageTask} before hitting the wire, see
+ * {@link SendMessageTask#prepareMessage()}, and template message creation
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessagePreparationBenchmark
+{
+    @Param({ "10", "10000", "1000000" })
+    public int messagesize;
+
+    /** none, envelope (generated sender and recipient) or roundtrip (tracker and correlation window) */
+    @Param({ "none", "envelope", "roundtrip" })
+    public String features;
+
+    private Session session;
+    private File addresses;
+    private DeliveryTracker tracker;
+    private CorrelationWindow window;
+    private SendMessageTask task;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        session = Session.getInstance(new Properties());
+        MimeMessage message = SMTPSampler.buildMessage(session, "test", "from@localhost", "to@localhost", messagesize, 1, null);
+
+        EnvelopeGenerator envelope = null;
+        if (features.equals("envelope"))
+        {
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < 10000; i++)
+                lines.add("user" + i + "@domain" + (i % 100) + ".example.com");
+            addresses = File.createTempFile("addresses", ".txt");
+            Files.write(addresses.toPath(), lines, StandardCharsets.UTF_8);
+
+            AddressFile file = AddressFile.open(addresses, new HashMap<>());
+            envelope = new EnvelopeGenerator(
+                    new AddressSelector(file, AddressSelector.Selection.UNIFORM, 1, null),
+                    new AddressSelector(file, AddressSelector.Selection.UNIFORM, 1, null));
+        }
+
+        /* Short deadlines, so that registered messages expire during the run */
+        if (features.equals("roundtrip"))
+        {
+            tracker = new DeliveryTracker(1, TimeUnit.SECONDS);
+            tracker.start();
+            window = new CorrelationWindow(1, TimeUnit.SECONDS);
+            window.start();
+        }
+
+        task = new SendMessageTask(new CompositeResultCollector(), "localhost", 25, null, session, message, 1,
+                new AtomicLong(), new AtomicLong(), SendMessageTask.MESSAGE_ID_HEADER, tracker, window, null, envelope);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        if (tracker != null)
+            tracker.stop();
+        if (window != null)
+            window.stop();
+        if (addresses != null)
+            addresses.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long prepareMessage() throws Exception
+    {
+        return task.prepareMessage();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long prepareMessage4Threads() throws Exception
+    {
+        return task.prepareMessage();
+    }
+
+    @Benchmark
+    public MimeMessage buildMessage() throws Exception
+    {
+        return SMTPSampler.buildMessage(session, "test", "from@localhost", "to@localhost", messagesize, 1, null);
+    }
+}
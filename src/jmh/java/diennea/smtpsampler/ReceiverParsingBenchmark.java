@@ -0,0 +1,86 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Inbound message handling of {@link MessageReceiver}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiverParsingBenchmark
+{
+    @Param({ "10", "10000", "1000000" })
+    public int messagesize;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        Session session = Session.getInstance(new Properties());
+        MimeMessage message = SMTPSampler.buildMessage(session, "test", "from@localhost", "to@localhost", messagesize, 1, null);
+        message.setHeader(SendMessageTask.MESSAGE_ID_HEADER, "12345");
+        message.setHeader(SendMessageTask.BODY_CHECKSUM_HEADER, PayloadChecksum.of(message).toString());
+        message.saveChanges();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        data = out.toByteArray();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object scan() throws Exception
+    {
+        return MessageReceiver.scan(new ByteArrayInputStream(data), SendMessageTask.MESSAGE_ID_HEADER);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object scan4Threads() throws Exception
+    {
+        return MessageReceiver.scan(new ByteArrayInputStream(data), SendMessageTask.MESSAGE_ID_HEADER);
+    }
+}
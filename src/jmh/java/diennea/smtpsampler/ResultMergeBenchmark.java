@@ -0,0 +1,90 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Merge of the per connection send times in {@link SMTPSampler}, reported
+ * per message
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultMergeBenchmark
+{
+    @Param({ "1", "100" })
+    public int nummessagesperconnection;
+
+    /** Messages merged on every invocation */
+    private static final int MESSAGES = 10_000;
+
+    private List<SendMessageTask.Result> results;
+
+    @Setup
+    public void setup()
+    {
+        results = new ArrayList<>();
+
+        long messageID = 0;
+        for (int connection = 0; connection < MESSAGES / nummessagesperconnection; connection++)
+        {
+            SendMessageTask.Result result = new SendMessageTask.Result(nummessagesperconnection);
+            for (int i = 0; i < nummessagesperconnection; i++, messageID++)
+            {
+                result.getMessageIDBeforeSendTimes().put(messageID, messageID);
+                result.getMessageIDAfterSendTimes().put(messageID, messageID + 1);
+            }
+            results.add(result);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void mergeSendTimes(Blackhole blackhole)
+    {
+        Map<Long,Long> before = new HashMap<>();
+        Map<Long,Long> after = new HashMap<>();
+        SMTPSampler.mergeSendTimes(results, before, after);
+        blackhole.consume(before);
+        blackhole.consume(after);
+    }
+}
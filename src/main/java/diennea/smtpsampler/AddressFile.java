@@ -0,0 +1,182 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A file of addresses, one per line, memory mapped: only line offsets are
+ * kept on heap and addresses are decoded when picked.
+ * <p>
+ * Files are shared by every traffic class of a run using them, and dropped
+ * with the run so that a later run maps them again.
+ * </p>
+ */
+public final class AddressFile
+{
+    private final File file;
+    private final MappedByteBuffer buffer;
+
+    /** Start offset of every address */
+    private final int[] offsets;
+
+    /** Length of every address, without line terminators */
+    private final int[] lengths;
+
+    private AddressFile(File file) throws IOException
+    {
+        this.file = file;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+        {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Address file " + file + " is over 2 GB");
+
+            /* The mapping stays valid after the channel is closed */
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int[] starts = new int[1024];
+        int[] ends = new int[1024];
+        int count = 0;
+
+        int limit = buffer.limit();
+        int start = 0;
+        for (int i = 0; i <= limit; i++)
+        {
+            if (i == limit || buffer.get(i) == '\n')
+            {
+                int end = i;
+                while (end > start && (buffer.get(end - 1) == '\r' || buffer.get(end - 1) == ' '))
+                    end--;
+                while (start < end && buffer.get(start) == ' ')
+                    start++;
+
+                /* Skip blank lines and comments */
+                if (end > start && buffer.get(start) != '#')
+                {
+                    if (count == starts.length)
+                    {
+                        starts = Arrays.copyOf(starts, count * 2);
+                        ends = Arrays.copyOf(ends, count * 2);
+                    }
+                    starts[count] = start;
+                    ends[count] = end - start;
+                    count++;
+                }
+                start = i + 1;
+            }
+        }
+
+        if (count == 0)
+            throw new IOException("No address in " + file);
+
+        this.offsets = Arrays.copyOf(starts, count);
+        this.lengths = Arrays.copyOf(ends, count);
+    }
+
+    /**
+     * Maps given file, once for the whole run
+     *
+     * @param opened files already mapped by the run, by canonical path
+     */
+    public static AddressFile open(File file, Map<String,AddressFile> opened) throws IOException
+    {
+        String key = file.getCanonicalPath();
+
+        AddressFile open = opened.get(key);
+        if (open == null)
+        {
+            open = new AddressFile(file);
+            opened.put(key, open);
+        }
+        return open;
+    }
+
+    public int size()
+    {
+        return offsets.length;
+    }
+
+    public String get(int index)
+    {
+        byte[] bytes = new byte[lengths[index]];
+        int offset = offsets[index];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(offset + i);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Matches the domain of given address without decoding it.
+     *
+     * @param domains lower case UTF-8 domains, compared ignoring ASCII case;
+     *                addresses without {@code @} have an empty domain
+     * @return position in {@code domains} of the domain of given address, -1
+     *         if none matches
+     */
+    public int domainIndex(int index, byte[][] domains)
+    {
+        int offset = offsets[index];
+        int end = offset + lengths[index];
+
+        int start = end;
+        for (int i = end - 1; i >= offset; i--)
+        {
+            if (buffer.get(i) == '@')
+            {
+                start = i + 1;
+                break;
+            }
+        }
+
+        for (int d = 0; d < domains.length; d++)
+        {
+            byte[] domain = domains[d];
+            if (domain.length != end - start)
+                continue;
+
+            int i = 0;
+            while (i < domain.length && lower(buffer.get(start + i)) == domain[i])
+                i++;
+            if (i == domain.length)
+                return d;
+        }
+        return -1;
+    }
+
+    private static byte lower(byte b)
+    {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.math3.distribution.ZipfDistribution;
+
+/**
+ * Picks addresses from an {@link AddressFile}.
+ * <p>
+ * Selection is uniform, zipfian (the first addresses of the file are the most
+ * popular) or sequential. With domain weights, the domain is picked first,
+ * then the address among the ones of that domain. Weights are written like
+ * {@code example.com=50,example.org=30,*=20}, where {@code *} stands for
+ * every domain not listed; unlisted domains are never picked without it.
+ * </p>
+ */
+public final class AddressSelector
+{
+    public enum Selection
+    {
+        UNIFORM, ZIPFIAN, SEQUENTIAL
+    }
+
+    private final Group[] groups;
+    private final double[] cumulativeWeights;
+
+    public AddressSelector(AddressFile file, Selection selection, double exponent, String domainWeights) throws Exception
+    {
+        if (domainWeights == null || domainWeights.trim().isEmpty())
+        {
+            groups = new Group[] { new Group(file, null, selection, exponent) };
+            cumulativeWeights = new double[] { 1 };
+            return;
+        }
+
+        Map<String,Double> weights = new LinkedHashMap<>();
+        for (String setting : domainWeights.split(","))
+        {
+            int separator = setting.indexOf('=');
+            if (separator < 0)
+                throw new Exception("Bad domain weight '" + setting + "', expected domain=weight");
+            weights.put(setting.substring(0, separator).trim().toLowerCase(Locale.ROOT),
+                    Double.valueOf(setting.substring(separator + 1).trim()));
+        }
+
+        /* Group address indexes by weighted domain, "*" collects the others */
+        String[] names = weights.keySet().toArray(new String[weights.size()]);
+        byte[][] domains = new byte[names.length][];
+        int others = -1;
+        for (int d = 0; d < names.length; d++)
+        {
+            domains[d] = names[d].getBytes(StandardCharsets.UTF_8);
+            if (names[d].equals("*"))
+                others = d;
+        }
+
+        /* Count first, then fill, without boxing a million indexes */
+        int[] counts = new int[names.length];
+        for (int i = 0; i < file.size(); i++)
+        {
+            int group = group(file, i, domains, others);
+            if (group >= 0)
+                counts[group]++;
+        }
+
+        int[][] members = new int[names.length][];
+        for (int d = 0; d < names.length; d++)
+            members[d] = new int[counts[d]];
+
+        int[] filled = new int[names.length];
+        for (int i = 0; i < file.size(); i++)
+        {
+            int group = group(file, i, domains, others);
+            if (group >= 0)
+                members[group][filled[group]++] = i;
+        }
+
+        List<Group> selected = new ArrayList<>();
+        List<Double> cumulative = new ArrayList<>();
+        double total = 0;
+        for (int d = 0; d < names.length; d++)
+        {
+            if (members[d].length == 0)
+            {
+                System.err.println("No address of domain " + names[d] + " in " + file.getFile() + ", ignoring its weight");
+                continue;
+            }
+
+            total += weights.get(names[d]);
+            selected.add(new Group(file, members[d], selection, exponent));
+            cumulative.add(total);
+        }
+
+        if (selected.isEmpty() || total <= 0)
+            throw new Exception("No address of weighted domains in " + file.getFile());
+
+        groups = selected.toArray(new Group[selected.size()]);
+        cumulativeWeights = new double[cumulative.size()];
+        for (int i = 0; i < cumulativeWeights.length; i++)
+            cumulativeWeights[i] = cumulative.get(i) / total;
+    }
+
+    private static int group(AddressFile file, int index, byte[][] domains, int others)
+    {
+        int group = file.domainIndex(index, domains);
+        return group < 0 ? others : group;
+    }
+
+    public String next()
+    {
+        if (groups.length == 1)
+            return groups[0].next();
+
+        double random = ThreadLocalRandom.current().nextDouble();
+        int group = Arrays.binarySearch(cumulativeWeights, random);
+        if (group < 0)
+            group = Math.min(-group - 1, groups.length - 1);
+
+        return groups[group].next();
+    }
+
+    private static final class Group
+    {
+        private final AddressFile file;
+
+        /** Address indexes in the file, null for all */
+        private final int[] indexes;
+        private final int size;
+
+        private final Selection selection;
+        private final AtomicLong sequence = new AtomicLong();
+        private final ThreadLocal<ZipfDistribution> zipf;
+
+        Group(AddressFile file, int[] indexes, Selection selection, double exponent)
+        {
+            this.file = file;
+            this.indexes = indexes;
+            this.size = indexes == null ? file.size() : indexes.length;
+            this.selection = selection;
+
+            /* Samplers are not thread safe */
+            this.zipf = selection == Selection.ZIPFIAN ? ThreadLocal.withInitial(() -> new ZipfDistribution(size, exponent)) : null;
+        }
+
+        String next()
+        {
+            int rank;
+            switch (selection)
+            {
+                case ZIPFIAN:
+                    rank = zipf.get().sample() - 1;
+                    break;
+                case SEQUENTIAL:
+                    rank = (int) (sequence.getAndIncrement() % size);
+                    break;
+                default:
+                    rank = ThreadLocalRandom.current().nextInt(size);
+            }
+
+            return file.get(indexes == null ? rank : indexes[rank]);
+        }
+    }
+}
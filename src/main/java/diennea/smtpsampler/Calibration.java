@@ -0,0 +1,243 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.OutputStream;
+import java.text.DecimalFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Measures the maximum throughput smtpsampler itself can reach, running the
+ * configured workload against an in-process {@link NullSink}.
+ * <p>
+ * Only a sample of the workload is sent, at most {@value #MAX_MESSAGES}
+ * messages split among the traffic classes like the workload, enough for
+ * the sampler to reach a steady state. The run timeout does not apply, the
+ * calibration gives up after {@value #TIMEOUT_SECONDS} seconds.
+ * </p>
+ */
+public final class Calibration
+{
+    /**
+     * Runs using more than this fraction of the calibrated ceiling are
+     * likely bounded by the client and not by the server under test
+     */
+    public static final double SATURATION_THRESHOLD = 0.8;
+
+    /** Messages sent to the null sink, at most */
+    public static final long MAX_MESSAGES = 5000;
+
+    public static final long TIMEOUT_SECONDS = 60;
+
+    private final long messages;
+    private final double messagesPerSecond;
+    private final double bytesPerSecond;
+    private final double cpuPerMessage;
+    private final double allocationPerMessage;
+
+    private Calibration(long messages, double messagesPerSecond, double bytesPerSecond, double cpuPerMessage, double allocationPerMessage)
+    {
+        this.messages = messages;
+        this.messagesPerSecond = messagesPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.cpuPerMessage = cpuPerMessage;
+        this.allocationPerMessage = allocationPerMessage;
+    }
+
+    public static Calibration calibrate(Session session, List<TrafficClass> classes, String messageIDHeader) throws Exception
+    {
+        /* The null sink speaks plain SMTP only */
+        Properties props = new Properties();
+        props.putAll(session.getProperties());
+        props.remove("mail.smtp.starttls.enable");
+        props.remove("mail.smtp.starttls.required");
+        Session calibrationSession = Session.getInstance(props);
+
+        NullSink sink = new NullSink();
+        sink.start();
+        try
+        {
+            /* Ceiling is measured without rate limits, the null sink does not offer AUTH either */
+            long total = 0;
+            for (TrafficClass trafficClass : classes)
+                total += weight(trafficClass);
+
+            /* Every class keeps its share of the workload, and sends on all of its threads */
+            Map<TrafficClass,ResultCollector> collectors = new LinkedHashMap<>();
+            for (TrafficClass trafficClass : classes)
+            {
+                long messages = Math.max(trafficClass.getNumthreads(), MAX_MESSAGES * weight(trafficClass) / total);
+                if (!trafficClass.isReplayed())
+                    messages = Math.min(trafficClass.getNummessages(), messages);
+                collectors.put(trafficClass.unlimited(messages), new CountingCollector());
+            }
+
+            long start = System.nanoTime();
+
+            LongAdder cpu = new LongAdder();
+            LongAdder allocated = new LongAdder();
+            SMTPSampler.sendMessages(collectors, calibrationSession, sink.getHost(), sink.getPort(), messageIDHeader, null, null, null,
+                    (trafficClass, result) ->
+                    {
+                        cpu.add(result.getCpuTime());
+                        allocated.add(result.getAllocatedBytes());
+                    },
+                    TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+            long elapsed = System.nanoTime() - start;
+
+            long delivered = 0;
+            long bytes = 0;
+            for (Map.Entry<TrafficClass,ResultCollector> entry : collectors.entrySet())
+            {
+                long classDelivered = ((CountingCollector) entry.getValue()).delivered.longValue();
+                delivered += classDelivered;
+                bytes += classDelivered * messageSize(entry.getKey().getMessage());
+            }
+
+            if (delivered == 0)
+                throw new Exception("Calibration failed, no message delivered to the null sink");
+
+            double seconds = elapsed / 1_000_000_000d;
+
+            return new Calibration(
+                    delivered,
+                    delivered / seconds,
+                    bytes / seconds,
+                    cpu.doubleValue() / delivered,
+                    allocated.doubleValue() / delivered);
+
+        } finally
+        {
+            sink.stop();
+        }
+    }
+
+    /**
+     * @return share of a class in the workload, by threads for trace replays
+     *         which have no number of messages
+     */
+    private static long weight(TrafficClass trafficClass)
+    {
+        return trafficClass.isReplayed() ? trafficClass.getNumthreads() : trafficClass.getNummessages();
+    }
+
+    /**
+     * @return fraction of the calibrated ceiling reached by given throughput
+     */
+    public double usage(double messagesPerSecond)
+    {
+        return messagesPerSecond / this.messagesPerSecond;
+    }
+
+    public double getMessagesPerSecond()
+    {
+        return messagesPerSecond;
+    }
+
+    public double getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    public double getCpuPerMessage()
+    {
+        return cpuPerMessage;
+    }
+
+    public double getAllocationPerMessage()
+    {
+        return allocationPerMessage;
+    }
+
+    public void print()
+    {
+        final DecimalFormat format = new DecimalFormat("0.000");
+
+        System.out.println("Calibration (null sink, " + messages + " messages):");
+        System.out.println("  Max delivery speed:    " + format.format(messagesPerSecond) + " msg/s");
+        System.out.println("  Max bandwidth:         " + format.format(bytesPerSecond / (1024 * 1024)) + " MB/s");
+        System.out.println("  Client CPU:            " + format.format(cpuPerMessage / 1000) + " us/msg");
+        System.out.println("  Client allocation:     " + format.format(allocationPerMessage / 1024) + " KB/msg");
+        System.out.println();
+    }
+
+    static long messageSize(MimeMessage message) throws Exception
+    {
+        CountingOutputStream out = new CountingOutputStream();
+        message.writeTo(out);
+        return out.count;
+    }
+
+    private static final class CountingOutputStream extends OutputStream
+    {
+        long count;
+
+        @Override
+        public void write(int b)
+        {
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            count += len;
+        }
+    }
+
+    private static final class CountingCollector implements ResultCollector
+    {
+        private final LongAdder delivered = new LongAdder();
+
+        @Override
+        public void start() {}
+
+        @Override
+        public void finishSend() {}
+
+        @Override
+        public void finishReceive() {}
+
+        @Override
+        public void finished() {}
+
+        @Override
+        public void messageSent(long connectionId, int messageNumber, long time, String lastServerResponse, Throwable error)
+        {
+            if (error == null)
+                delivered.increment();
+        }
+
+        @Override
+        public void connectionHandled(long connectionId, long time, Throwable error) {}
+
+        @Override
+        public void messageReceived(long receivens, long beforesendns, long aftersendns) {}
+    }
+}
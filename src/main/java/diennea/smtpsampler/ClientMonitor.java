@@ -0,0 +1,296 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Monitors client JVM resources during a run: garbage collection pauses and
+ * CPU time and allocated bytes of the receiver threads. Sender threads report
+ * their own usage through {@link SendMessageTask.Result}.
+ */
+public class ClientMonitor
+{
+    /** Max number of GC pauses retained, the largest ones */
+    private static final int MAX_PAUSES = 10;
+
+    private static final long SAMPLE_MILLIS = 1000;
+
+    private final String receiverThreadPrefix;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final ScheduledExecutorService sampler;
+
+    /** Last CPU and allocation sample seen for every receiver thread */
+    private final Map<Long,long[]> receiverThreads = new HashMap<>();
+
+    private final List<Pause> pauses = new ArrayList<>();
+    private long pauseCount;
+    private long pauseTime;
+
+    private final NotificationListener listener = new NotificationListener()
+    {
+        @Override
+        public void handleNotification(Notification notification, Object handback)
+        {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+                return;
+
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            collected(info);
+        }
+    };
+
+    public ClientMonitor(String receiverThreadPrefix)
+    {
+        this.receiverThreadPrefix = receiverThreadPrefix;
+        this.sampler = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread thread = new Thread(r, "client-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start()
+    {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            if (gc instanceof NotificationEmitter)
+                ((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+        }
+
+        sampler.scheduleAtFixedRate(this::sampleThreads, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops monitoring, must be invoked while receiver threads are still alive
+     */
+    public Report stop(long senderCpuTime, long senderAllocatedBytes)
+    {
+        sampler.shutdownNow();
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            if (gc instanceof NotificationEmitter)
+            {
+                try
+                {
+                    ((NotificationEmitter) gc).removeNotificationListener(listener);
+                } catch (Exception e)
+                {
+                    /* Ignore, listener never registered */
+                }
+            }
+        }
+
+        sampleThreads();
+
+        synchronized (this)
+        {
+            long receiverCpuTime = 0;
+            long receiverAllocatedBytes = 0;
+            for (long[] sample : receiverThreads.values())
+            {
+                receiverCpuTime += sample[0];
+                receiverAllocatedBytes += sample[1];
+            }
+
+            List<Pause> largest = new ArrayList<>(pauses);
+            Collections.sort(largest, Comparator.comparingLong(Pause::getDuration).reversed());
+
+            return new Report(senderCpuTime, senderAllocatedBytes, receiverCpuTime, receiverAllocatedBytes,
+                    pauseCount, pauseTime, largest);
+        }
+    }
+
+    private synchronized void collected(GarbageCollectionNotificationInfo info)
+    {
+        /* Concurrent cycles do not stop application threads */
+        String name = info.getGcName();
+        if (name.contains("Concurrent") || name.contains("Cycles"))
+            return;
+
+        long duration = TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration());
+
+        /* GC times are relative to JVM start, bring them in the nanoTime domain */
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        long start = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(uptime - info.getGcInfo().getStartTime());
+
+        ++pauseCount;
+        pauseTime += duration;
+
+        pauses.add(new Pause(name, start, duration));
+        if (pauses.size() > MAX_PAUSES)
+            pauses.remove(Collections.min(pauses, Comparator.comparingLong(Pause::getDuration)));
+    }
+
+    private void sampleThreads()
+    {
+        if (!threads.isThreadCpuTimeSupported())
+            return;
+
+        com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threads : null;
+
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds()))
+        {
+            if (info == null || !info.getThreadName().startsWith(receiverThreadPrefix))
+                continue;
+
+            long id = info.getThreadId();
+            long cpu = threads.getThreadCpuTime(id);
+            long allocated = allocations != null ? allocations.getThreadAllocatedBytes(id) : 0;
+
+            /* Dead meanwhile */
+            if (cpu < 0)
+                continue;
+
+            synchronized (this)
+            {
+                receiverThreads.put(id, new long[] { cpu, Math.max(0, allocated) });
+            }
+        }
+    }
+
+    /**
+     * A stop the world GC pause
+     */
+    public static final class Pause
+    {
+        private final String collector;
+        private final long start;
+        private final long duration;
+
+        private Pause(String collector, long start, long duration)
+        {
+            this.collector = collector;
+            this.start = start;
+            this.duration = duration;
+        }
+
+        public String getCollector()
+        {
+            return collector;
+        }
+
+        /**
+         * @return pause start, in the {@link System#nanoTime()} domain
+         */
+        public long getStart()
+        {
+            return start;
+        }
+
+        /**
+         * @return pause duration, in nanoseconds
+         */
+        public long getDuration()
+        {
+            return duration;
+        }
+    }
+
+    /**
+     * Client resources used during the run
+     */
+    public static final class Report
+    {
+        private final long senderCpuTime;
+        private final long senderAllocatedBytes;
+        private final long receiverCpuTime;
+        private final long receiverAllocatedBytes;
+        private final long pauseCount;
+        private final long pauseTime;
+        private final List<Pause> largestPauses;
+
+        private Report(long senderCpuTime, long senderAllocatedBytes, long receiverCpuTime, long receiverAllocatedBytes,
+                long pauseCount, long pauseTime, List<Pause> largestPauses)
+        {
+            this.senderCpuTime = senderCpuTime;
+            this.senderAllocatedBytes = senderAllocatedBytes;
+            this.receiverCpuTime = receiverCpuTime;
+            this.receiverAllocatedBytes = receiverAllocatedBytes;
+            this.pauseCount = pauseCount;
+            this.pauseTime = pauseTime;
+            this.largestPauses = Collections.unmodifiableList(largestPauses);
+        }
+
+        public long getSenderCpuTime()
+        {
+            return senderCpuTime;
+        }
+
+        public long getSenderAllocatedBytes()
+        {
+            return senderAllocatedBytes;
+        }
+
+        public long getReceiverCpuTime()
+        {
+            return receiverCpuTime;
+        }
+
+        public long getReceiverAllocatedBytes()
+        {
+            return receiverAllocatedBytes;
+        }
+
+        public long getPauseCount()
+        {
+            return pauseCount;
+        }
+
+        /**
+         * @return total GC pause time, in nanoseconds
+         */
+        public long getPauseTime()
+        {
+            return pauseTime;
+        }
+
+        /**
+         * @return largest GC pauses, longest first
+         */
+        public List<Pause> getLargestPauses()
+        {
+            return largestPauses;
+        }
+    }
+}
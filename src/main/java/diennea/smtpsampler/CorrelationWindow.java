@@ -0,0 +1,175 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Matches send and receive times of in flight messages as soon as both are
+ * known, instead of merging them at the end of the run.
+ * <p>
+ * Entries older than the window are aged out, so memory is bounded by the
+ * messages sent or received within the window whatever the length of the
+ * run.
+ * </p>
+ */
+public class CorrelationWindow
+{
+    private static final class Entry
+    {
+        final long created = System.nanoTime();
+
+        long before = -1;
+        long after = -1;
+        long receive = -1;
+
+        ResultCollector collector;
+
+        boolean isComplete()
+        {
+            return before >= 0 && after >= 0 && receive >= 0;
+        }
+    }
+
+    private final long windowNanos;
+
+    private final ConcurrentMap<Long,Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder expired = new LongAdder();
+
+    private final ScheduledExecutorService sweeper;
+
+    public CorrelationWindow(long window, TimeUnit unit)
+    {
+        this.windowNanos = unit.toNanos(window);
+
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread thread = new Thread(r, "correlation-window");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start()
+    {
+        sweeper.scheduleWithFixedDelay(this::sweep, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void stop()
+    {
+        sweeper.shutdownNow();
+    }
+
+    /**
+     * Records the send start of a message, must precede the send itself: the
+     * message could be received before the sender gets back the response
+     */
+    public void sent(long messageID, long before, ResultCollector collector)
+    {
+        update(messageID, entry ->
+        {
+            entry.before = before;
+            entry.collector = collector;
+        });
+    }
+
+    /**
+     * Records the end of data transmission of a sent message
+     */
+    public void acknowledged(long messageID, long after)
+    {
+        update(messageID, entry -> entry.after = after);
+    }
+
+    /**
+     * Forgets a message which failed to be sent
+     */
+    public void cancel(long messageID)
+    {
+        entries.remove(messageID);
+    }
+
+    public void received(long messageID, long receive)
+    {
+        update(messageID, entry -> entry.receive = receive);
+    }
+
+    private void update(long messageID, Consumer<Entry> update)
+    {
+        final Entry[] completed = new Entry[1];
+
+        entries.compute(messageID, (id, entry) ->
+        {
+            if (entry == null)
+                entry = new Entry();
+
+            update.accept(entry);
+
+            if (entry.isComplete())
+            {
+                completed[0] = entry;
+                return null;
+            }
+            return entry;
+        });
+
+        /* Report out of the map lock */
+        Entry entry = completed[0];
+        if (entry != null)
+            entry.collector.messageReceived(entry.receive, entry.before, entry.after);
+    }
+
+    void sweep()
+    {
+        long limit = System.nanoTime() - windowNanos;
+
+        Iterator<Map.Entry<Long,Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            Map.Entry<Long,Entry> entry = iterator.next();
+            if (entry.getValue().created - limit < 0 && entries.remove(entry.getKey(), entry.getValue()))
+                expired.increment();
+        }
+    }
+
+    /**
+     * @return entries aged out before being matched
+     */
+    public long getExpired()
+    {
+        return expired.longValue();
+    }
+
+    /**
+     * @return entries currently waiting for a match
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Credentials used by the connections of a traffic class, each connection
+ * picking the next one round robin or at random, so that the authentication
+ * backend sees many users and not a single hot key.
+ * <p>
+ * Credential files have a {@code username:secret} line per user, where the
+ * secret is a password or a static OAuth 2 access token for XOAUTH2. Lines
+ * are split on the first colon only, nothing is trimmed.
+ * </p>
+ */
+public final class CredentialPool
+{
+    public enum Selection
+    {
+        ROUNDROBIN, RANDOM
+    }
+
+    public static final class Credential
+    {
+        private final String username;
+        private final String secret;
+
+        public Credential(String username, String secret)
+        {
+            this.username = username;
+            this.secret = secret;
+        }
+
+        public String getUsername()
+        {
+            return username;
+        }
+
+        public String getSecret()
+        {
+            return secret;
+        }
+    }
+
+    private final Credential[] credentials;
+    private final Selection selection;
+    private final SMTPAuth.Mechanism mechanism;
+
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * @param mechanism AUTH mechanism, null to pick one offered by the server
+     */
+    public CredentialPool(List<Credential> credentials, Selection selection, SMTPAuth.Mechanism mechanism)
+    {
+        this.credentials = credentials.toArray(new Credential[credentials.size()]);
+        this.selection = selection;
+        this.mechanism = mechanism;
+    }
+
+    public static CredentialPool load(File file, Selection selection, SMTPAuth.Mechanism mechanism) throws Exception
+    {
+        List<Credential> credentials = new ArrayList<>();
+        try
+        {
+            int number = 0;
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+            {
+                ++number;
+                /* Secrets are taken verbatim, spaces included */
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#"))
+                    continue;
+
+                int separator = line.indexOf(':');
+                if (separator <= 0)
+                    throw new Exception("Bad credential at line " + number + " of " + file + ", expected username:secret");
+
+                credentials.add(new Credential(line.substring(0, separator), line.substring(separator + 1)));
+            }
+        } catch (IOException e)
+        {
+            throw new Exception("Cannot read credentials " + file + ": " + e, e);
+        }
+
+        if (credentials.isEmpty())
+            throw new Exception("No credential in " + file);
+
+        return new CredentialPool(credentials, selection, mechanism);
+    }
+
+    public static Selection parseSelection(String selection) throws Exception
+    {
+        try
+        {
+            return Selection.valueOf(selection.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e)
+        {
+            throw new Exception("Unknown credential selection '" + selection + "', expected roundrobin or random");
+        }
+    }
+
+    public Credential next()
+    {
+        if (selection == Selection.RANDOM)
+            return credentials[ThreadLocalRandom.current().nextInt(credentials.length)];
+
+        return credentials[(int) (next.getAndIncrement() % credentials.length)];
+    }
+
+    /**
+     * @return configured AUTH mechanism, null to pick one offered by the server
+     */
+    public SMTPAuth.Mechanism getMechanism()
+    {
+        return mechanism;
+    }
+
+    public int size()
+    {
+        return credentials.length;
+    }
+}
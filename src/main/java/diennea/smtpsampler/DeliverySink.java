@@ -0,0 +1,331 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.apache.commons.math3.stat.descriptive.SynchronizedSummaryStatistics;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * Standalone delivery sink: receives benchmark messages from another process
+ * or host, computes round trip latencies from the send timestamp embedded by
+ * the sender and streams one record per message to a results file.
+ * <p>
+ * Record format: {@value #RECORD_HEADER}, times in epoch nanoseconds,
+ * offset is the sink clock minus the sender clock. When the offset is
+ * estimated the offset field is empty and the latency is the raw delay: the
+ * minimum delay is only known at the end, so it is subtracted when results
+ * are summarised or merged.
+ * </p>
+ */
+public class DeliverySink
+{
+    public static final String RECORD_HEADER = "runid,messageid,sendns,receivens,offsetns,latencyns";
+
+    private final SMTPServer server;
+    private final Writer writer;
+    private final ScheduledExecutorService flusher;
+
+    private final boolean estimateOffset;
+    private final long fixedOffset;
+
+    /** Minimum raw receive - send delay seen so far */
+    private final AtomicLong minDelay = new AtomicLong(Long.MAX_VALUE);
+
+    private final SummaryStatistics latency = new SynchronizedSummaryStatistics();
+    private final AtomicLong ignored = new AtomicLong();
+
+    /** Messages to receive before terminating, unbounded if not positive */
+    private final long messages;
+    private final AtomicLong received = new AtomicLong();
+
+    public DeliverySink(String host, int port, File output, long fixedOffset, boolean estimateOffset, long messages) throws IOException
+    {
+        this.fixedOffset = fixedOffset;
+        this.estimateOffset = estimateOffset;
+        this.messages = messages > 0 ? messages : Long.MAX_VALUE;
+
+        this.writer = new BufferedWriter(Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8));
+        this.writer.write(RECORD_HEADER);
+        this.writer.write('\n');
+
+        this.flusher = Executors.newSingleThreadScheduledExecutor();
+
+        server = new NoDelaySMTPServer( new MessageHandlerFactory()
+        {
+            @Override
+            public MessageHandler create(MessageContext ctx)
+            {
+                return new TimestampHandler();
+            }
+        });
+
+        server.setBindAddress(InetAddress.getByName(host));
+        server.setPort(port);
+    }
+
+    public void start()
+    {
+        server.start();
+
+        flusher.scheduleWithFixedDelay(() ->
+        {
+            try
+            {
+                synchronized (writer)
+                {
+                    writer.flush();
+                }
+            } catch (IOException e)
+            {
+                System.err.println("Cannot flush sink results: " + e);
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void stop() throws IOException
+    {
+        server.stop();
+        flusher.shutdownNow();
+
+        synchronized (writer)
+        {
+            writer.close();
+        }
+    }
+
+    public void awaitTermination() throws InterruptedException
+    {
+        synchronized (received)
+        {
+            while (received.get() < messages)
+                received.wait();
+        }
+    }
+
+    /**
+     * @return clock offset, estimated on the records received so far
+     */
+    public long currentOffset()
+    {
+        if (!estimateOffset)
+            return fixedOffset;
+
+        /* Assume the fastest message travelled in no time */
+        long min = minDelay.get();
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    public void printSummary()
+    {
+        final DecimalFormat format = new DecimalFormat("0.000");
+        final double ms = TimeUnit.MILLISECONDS.toNanos(1);
+
+        System.out.println("Sink report:");
+        System.out.println("  Received messages:     " + latency.getN());
+        System.out.println("  Ignored messages:      " + ignored.get() + " (no benchmark headers)");
+        System.out.println("  Clock offset:          " + format.format(currentOffset() / ms) + " ms" + (estimateOffset ? " (estimated)" : ""));
+
+        if (latency.getN() > 0)
+        {
+            /* Raw delays, a shift does not change the deviation */
+            long offset = currentOffset();
+            System.out.println("\n  Message round trip time");
+            System.out.println("    Average:             " + format.format((latency.getMean() - offset) / ms) + " ms");
+            System.out.println("    Minimum:             " + format.format((latency.getMin() - offset) / ms) + " ms");
+            System.out.println("    Maximum:             " + format.format((latency.getMax() - offset) / ms) + " ms");
+            System.out.println("    Standard deviation:  " + format.format(latency.getStandardDeviation() / ms));
+        }
+    }
+
+    private void record(String runID, String messageID, long send, long receive)
+    {
+        long delay = receive - send;
+
+        long min = minDelay.get();
+        while (delay < min && !minDelay.compareAndSet(min, delay))
+            min = minDelay.get();
+
+        latency.addValue(delay);
+
+        StringBuilder builder = new StringBuilder(96)
+            .append(runID).append(',')
+            .append(messageID).append(',')
+            .append(send).append(',')
+            .append(receive).append(',');
+        if (estimateOffset)
+            builder.append(',').append(delay).append('\n');
+        else
+            builder.append(fixedOffset).append(',').append(delay - fixedOffset).append('\n');
+
+        try
+        {
+            synchronized (writer)
+            {
+                writer.write(builder.toString());
+            }
+        } catch (IOException e)
+        {
+            System.err.println("Cannot write sink results: " + e);
+        }
+
+        if (received.incrementAndGet() == messages)
+        {
+            synchronized (received)
+            {
+                received.notifyAll();
+            }
+        }
+    }
+
+    private final class TimestampHandler implements MessageHandler
+    {
+        @Override
+        public void from(String from) throws RejectException {}
+
+        @Override
+        public void recipient(String recipient) throws RejectException {}
+
+        @Override
+        public void data(InputStream data) throws RejectException, TooMuchDataException, IOException
+        {
+            try
+            {
+                /* Parse headers only and drain the body */
+                InternetHeaders headers = new InternetHeaders(data);
+
+                final byte[] buffer = new byte[8192];
+                while (data.read(buffer) >= 0) {}
+
+                long receive = EpochClock.nanos();
+
+                String runID = headers.getHeader(SendMessageTask.RUN_ID_HEADER, null);
+                String messageID = headers.getHeader(SendMessageTask.MESSAGE_ID_HEADER, null);
+                String sendTime = headers.getHeader(SendMessageTask.SEND_TIME_HEADER, null);
+
+                if (runID == null || messageID == null || sendTime == null)
+                {
+                    ignored.incrementAndGet();
+                    return;
+                }
+
+                record(runID, messageID, Long.parseLong(sendTime.trim()), receive);
+
+            } catch (MessagingException | NumberFormatException e)
+            {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void done() {}
+    }
+
+    public static void main(String... args)
+    {
+        DeliverySink sink = null;
+        try
+        {
+            DefaultParser parser = new DefaultParser();
+            Options options = new Options();
+            options.addOption("lh", "listenhost", true, "SMTP Server hostname or IP Address, default to localhost");
+            options.addOption("lp", "listenport", true, "SMTP Server port, default to 25");
+            options.addOption("o", "output", true, "Results file, default to sink-results.csv");
+            options.addOption("co", "clockoffset", true, "Sink clock minus sender clock, in milliseconds, defaults to 0");
+            options.addOption("eo", "estimateoffset", false, "Estimate the clock offset from the fastest message seen");
+            options.addOption("n", "nummessages", true, "Stop after this number of messages, defaults to 0 which means 'forever'");
+            options.addOption("help", "help", false, "Print this help");
+
+            CommandLine commandLine = parser.parse(options, args);
+            if (commandLine.hasOption("help")) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("smtpsampler sink", options, true);
+                return;
+            }
+
+            String listenhost = commandLine.getOptionValue("listenhost", "localhost");
+            int listenport = Integer.parseInt(commandLine.getOptionValue("listenport", "25"));
+            File output = new File(commandLine.getOptionValue("output", "sink-results.csv"));
+            double clockoffset = Double.parseDouble(commandLine.getOptionValue("clockoffset", "0"));
+            boolean estimateoffset = commandLine.hasOption("estimateoffset");
+            long nummessages = Long.parseLong(commandLine.getOptionValue("nummessages", "0"));
+
+            final DeliverySink started = sink = new DeliverySink(listenhost, listenport, output,
+                    (long) (clockoffset * TimeUnit.MILLISECONDS.toNanos(1)), estimateoffset, nummessages);
+
+            sink.start();
+            System.out.println("Sink listening on " + listenhost + ":" + listenport + ", writing to " + output.getAbsolutePath());
+
+            if (nummessages > 0)
+            {
+                sink.awaitTermination();
+            } else
+            {
+                Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                {
+                    try
+                    {
+                        started.stop();
+                    } catch (IOException e)
+                    {
+                        System.err.println("Cannot close sink results: " + e);
+                    }
+                    started.printSummary();
+                }));
+
+                Thread.currentThread().join();
+            }
+
+            sink.stop();
+            sink.printSummary();
+
+        } catch (Exception ex)
+        {
+            System.err.println("Fatal error: " + ex);
+            System.exit(1);
+        }
+    }
+}
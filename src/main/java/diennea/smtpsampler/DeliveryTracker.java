@@ -0,0 +1,375 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks delivery deadlines of sent messages with a hashed timing wheel.
+ * <p>
+ * Every sent message is registered with a deadline, arrivals cancel their
+ * entry and entries reaching their deadline are accounted as lost. A lost
+ * message arriving later is accounted as late instead. Any other arrival
+ * (duplicates, cancelled or foreign IDs) is only counted apart. Memory is
+ * bounded by in flight messages plus a capped set of missing ID ranges: lost
+ * IDs beyond the cap cannot be told apart from duplicates when they arrive.
+ * </p>
+ */
+public class DeliveryTracker
+{
+    /** Wheel slots, must be a power of two */
+    private static final int WHEEL_SIZE = 1024;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** Max number of distinct missing ID ranges retained for the report */
+    private static final int MAX_MISSING_RANGES = 1024;
+
+    private final long deadlineNanos;
+    private final long startNanos;
+
+    private final Entry[] wheel = new Entry[WHEEL_SIZE];
+    private final Map<Long,Entry> pending = new HashMap<>();
+
+    /** Missing ID ranges, start to inclusive end */
+    private final TreeMap<Long,Long> missing = new TreeMap<>();
+    private boolean missingTruncated;
+
+    private long currentTick;
+
+    private long delivered;
+    private long late;
+    private long duplicates;
+    private long expired;
+
+    private final ScheduledExecutorService ticker;
+
+    public DeliveryTracker(long deadline, TimeUnit unit)
+    {
+        this.deadlineNanos = unit.toNanos(deadline);
+        this.startNanos = System.nanoTime();
+
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread thread = new Thread(r, "delivery-tracker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start()
+    {
+        ticker.scheduleAtFixedRate(() -> advance(System.nanoTime()), TICK_NANOS, TICK_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    public void stop()
+    {
+        ticker.shutdownNow();
+    }
+
+    public long getDeadline(TimeUnit unit)
+    {
+        return unit.convert(deadlineNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Registers a message about to be sent
+     */
+    public synchronized void register(long messageID)
+    {
+        long deadlineTick = Math.max(currentTick + 1, (System.nanoTime() + deadlineNanos - startNanos) / TICK_NANOS);
+
+        Entry entry = new Entry(messageID, deadlineTick);
+        int slot = (int) (deadlineTick & WHEEL_MASK);
+
+        entry.next = wheel[slot];
+        if (entry.next != null)
+            entry.next.prev = entry;
+        wheel[slot] = entry;
+
+        pending.put(messageID, entry);
+    }
+
+    /**
+     * Forgets a registered message, used when the message was never accepted
+     * by the server
+     */
+    public synchronized void cancel(long messageID)
+    {
+        Entry entry = pending.remove(messageID);
+        if (entry != null)
+            unlink(entry);
+
+        checkDrained();
+    }
+
+    /**
+     * Accounts a message arrival
+     */
+    public synchronized void arrived(long messageID)
+    {
+        Entry entry = pending.remove(messageID);
+        if (entry != null)
+        {
+            unlink(entry);
+            ++delivered;
+            checkDrained();
+        } else if (removeMissing(messageID))
+        {
+            ++late;
+        } else
+        {
+            ++duplicates;
+        }
+    }
+
+    /**
+     * Waits until every registered message arrived or expired
+     */
+    public synchronized boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long remaining = unit.toNanos(timeout);
+        long end = System.nanoTime() + remaining;
+
+        while (!pending.isEmpty())
+        {
+            if (remaining <= 0)
+                return false;
+
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = end - System.nanoTime();
+        }
+
+        return true;
+    }
+
+    public synchronized Report report()
+    {
+        List<long[]> ranges = new ArrayList<>(missing.size());
+        for (Map.Entry<Long,Long> range : missing.entrySet())
+            ranges.add(new long[] { range.getKey(), range.getValue() });
+
+        return new Report(delivered, late, expired - late, duplicates, pending.size(), ranges, missingTruncated);
+    }
+
+    synchronized void advance(long now)
+    {
+        long targetTick = (now - startNanos) / TICK_NANOS;
+
+        while (currentTick < targetTick)
+        {
+            ++currentTick;
+
+            Entry entry = wheel[(int) (currentTick & WHEEL_MASK)];
+            while (entry != null)
+            {
+                Entry next = entry.next;
+
+                /* Unsorted slot: entries could be due in a later round */
+                if (entry.deadlineTick <= currentTick)
+                {
+                    unlink(entry);
+                    pending.remove(entry.messageID);
+                    ++expired;
+                    addMissing(entry.messageID);
+                }
+
+                entry = next;
+            }
+        }
+
+        checkDrained();
+    }
+
+    private void unlink(Entry entry)
+    {
+        if (entry.prev != null)
+            entry.prev.next = entry.next;
+        else
+            wheel[(int) (entry.deadlineTick & WHEEL_MASK)] = entry.next;
+
+        if (entry.next != null)
+            entry.next.prev = entry.prev;
+
+        entry.prev = entry.next = null;
+    }
+
+    private void checkDrained()
+    {
+        if (pending.isEmpty())
+            notifyAll();
+    }
+
+    private void addMissing(long messageID)
+    {
+        Map.Entry<Long,Long> lower = missing.floorEntry(messageID);
+        if (lower != null && lower.getValue() >= messageID)
+            return;
+
+        boolean joinLower = lower != null && lower.getValue() == messageID - 1;
+        Long upperEnd = missing.get(messageID + 1);
+
+        if (joinLower && upperEnd != null)
+        {
+            missing.remove(messageID + 1);
+            missing.put(lower.getKey(), upperEnd);
+        } else if (joinLower)
+        {
+            missing.put(lower.getKey(), messageID);
+        } else if (upperEnd != null)
+        {
+            missing.remove(messageID + 1);
+            missing.put(messageID, upperEnd);
+        } else if (missing.size() < MAX_MISSING_RANGES)
+        {
+            missing.put(messageID, messageID);
+        } else
+        {
+            missingTruncated = true;
+        }
+    }
+
+    /**
+     * @return true if given ID was missing
+     */
+    private boolean removeMissing(long messageID)
+    {
+        Map.Entry<Long,Long> range = missing.floorEntry(messageID);
+        if (range == null || range.getValue() < messageID)
+            return false;
+
+        long start = range.getKey();
+        long end = range.getValue();
+
+        missing.remove(start);
+        if (start < messageID)
+            missing.put(start, messageID - 1);
+        if (messageID < end)
+            missing.put(messageID + 1, end);
+        return true;
+    }
+
+    private static final class Entry
+    {
+        private final long messageID;
+        private final long deadlineTick;
+
+        private Entry prev;
+        private Entry next;
+
+        private Entry(long messageID, long deadlineTick)
+        {
+            this.messageID = messageID;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    /**
+     * Final delivery accounting
+     */
+    public static final class Report
+    {
+        private final long delivered;
+        private final long late;
+        private final long lost;
+        private final long duplicates;
+        private final long pending;
+        private final List<long[]> missingRanges;
+        private final boolean missingTruncated;
+
+        private Report(long delivered, long late, long lost, long duplicates, long pending, List<long[]> missingRanges,
+                boolean missingTruncated)
+        {
+            this.delivered = delivered;
+            this.late = late;
+            this.lost = lost;
+            this.duplicates = duplicates;
+            this.pending = pending;
+            this.missingRanges = Collections.unmodifiableList(missingRanges);
+            this.missingTruncated = missingTruncated;
+        }
+
+        /**
+         * @return messages arrived before their deadline
+         */
+        public long getDelivered()
+        {
+            return delivered;
+        }
+
+        /**
+         * @return messages arrived after their deadline
+         */
+        public long getLate()
+        {
+            return late;
+        }
+
+        /**
+         * @return messages expired and never arrived
+         */
+        public long getLost()
+        {
+            return lost;
+        }
+
+        /**
+         * @return arrivals of IDs neither pending nor missing: duplicates,
+         *         messages cancelled after a failed send or foreign IDs
+         */
+        public long getDuplicates()
+        {
+            return duplicates;
+        }
+
+        /**
+         * @return messages neither arrived nor expired yet
+         */
+        public long getPending()
+        {
+            return pending;
+        }
+
+        /**
+         * @return missing message ID ranges, as inclusive [start, end] pairs
+         */
+        public List<long[]> getMissingRanges()
+        {
+            return missingRanges;
+        }
+
+        /**
+         * @return true if some missing IDs did not fit in the retained ranges
+         */
+        public boolean isMissingTruncated()
+        {
+            return missingTruncated;
+        }
+    }
+}
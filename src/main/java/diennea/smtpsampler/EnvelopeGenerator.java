@@ -0,0 +1,73 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Fills sender and recipients of every message from address populations,
+ * updating headers only: the message body is never rebuilt. The envelope
+ * follows the From and To headers.
+ */
+public final class EnvelopeGenerator
+{
+    private final AddressSelector senders;
+    private final AddressSelector recipients;
+
+    /**
+     * @param senders sender population, null to keep the template sender
+     * @param recipients recipient population, null to keep the template recipients
+     */
+    public EnvelopeGenerator(AddressSelector senders, AddressSelector recipients)
+    {
+        this.senders = senders;
+        this.recipients = recipients;
+    }
+
+    /**
+     * Sets a new sender and new recipients on given message, to be saved
+     *
+     * @param recipientsPerMessage number of recipients to pick, usually the
+     *        number of template recipients
+     */
+    public void apply(MimeMessage message, int recipientsPerMessage) throws MessagingException
+    {
+        if (senders != null)
+            message.setFrom(address(senders.next()));
+
+        if (recipients != null)
+        {
+            InternetAddress[] addresses = new InternetAddress[Math.max(1, recipientsPerMessage)];
+            for (int i = 0; i < addresses.length; i++)
+                addresses[i] = address(recipients.next());
+            message.setRecipients(Message.RecipientType.TO, addresses);
+        }
+    }
+
+    private static InternetAddress address(String address) throws AddressException
+    {
+        /* Population files are trusted, skip strict parsing */
+        return new InternetAddress(address, false);
+    }
+}
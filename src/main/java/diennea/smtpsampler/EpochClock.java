@@ -0,0 +1,51 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * High resolution wall clock: nanoseconds since the epoch, anchored once to
+ * {@link System#currentTimeMillis()} and then advanced by
+ * {@link System#nanoTime()}. Values can be compared between processes only up
+ * to the clock offset of the hosts.
+ */
+public final class EpochClock
+{
+    private static final long ANCHOR_EPOCH_NANOS = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    private static final long ANCHOR_NANO_TIME = System.nanoTime();
+
+    private EpochClock()
+    {
+    }
+
+    public static long nanos()
+    {
+        return toEpochNanos(System.nanoTime());
+    }
+
+    /**
+     * Converts a {@link System#nanoTime()} value of this JVM to epoch nanoseconds
+     */
+    public static long toEpochNanos(long nanoTime)
+    {
+        return ANCHOR_EPOCH_NANOS + (nanoTime - ANCHOR_NANO_TIME);
+    }
+}
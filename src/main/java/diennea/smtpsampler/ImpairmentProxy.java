@@ -0,0 +1,400 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process TCP proxy injecting a {@link NetworkProfile}, to reproduce WAN
+ * conditions on a single host.
+ * <p>
+ * Every direction of every connection is relayed through a bounded queue of
+ * chunks: a reader stamps each chunk with its delivery time, a writer holds
+ * it until then and paces it on the bandwidth shared by all connections.
+ * Chunks are never reordered, so a stall delays the following ones too.
+ * </p>
+ */
+public class ImpairmentProxy
+{
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /** Chunks in flight for every direction, bounding memory and giving back pressure */
+    private static final int QUEUE_SIZE = 64;
+
+    private static final byte[] EOF = new byte[0];
+
+    private final String name;
+    private final NetworkProfile profile;
+
+    private final InetAddress bindAddress;
+    private final int port;
+    private final String targetHost;
+    private final int targetPort;
+
+    private final Link upstream;
+    private final Link downstream;
+
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder upstreamBytes = new LongAdder();
+    private final LongAdder downstreamBytes = new LongAdder();
+    private final LongAdder stalls = new LongAdder();
+
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    private final ExecutorService threads;
+
+    private ServerSocket server;
+
+    /**
+     * @param name path name shown in the report
+     * @param port listening port, 0 for an ephemeral one
+     */
+    public ImpairmentProxy(String name, NetworkProfile profile, InetAddress bindAddress, int port, String targetHost, int targetPort)
+    {
+        this.name = name;
+        this.profile = profile;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+
+        this.upstream = new Link(profile.getBitsPerSecond());
+        this.downstream = new Link(profile.getBitsPerSecond());
+
+        final AtomicInteger count = new AtomicInteger();
+        this.threads = Executors.newCachedThreadPool(r ->
+        {
+            Thread thread = new Thread(r, "impairment-proxy-" + name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() throws IOException
+    {
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(bindAddress, port), 1024);
+
+        threads.execute(this::accept);
+    }
+
+    public void stop()
+    {
+        close(server);
+        for (Socket socket : sockets)
+            close(socket);
+        threads.shutdownNow();
+    }
+
+    public String getHost()
+    {
+        return server.getInetAddress().getHostAddress();
+    }
+
+    public int getPort()
+    {
+        return server.getLocalPort();
+    }
+
+    private void accept()
+    {
+        while (!server.isClosed())
+        {
+            try
+            {
+                Socket client = server.accept();
+                threads.execute(() -> relay(client));
+
+            } catch (IOException e)
+            {
+                /* Closed */
+            }
+        }
+    }
+
+    private void relay(Socket client)
+    {
+        connections.increment();
+        sockets.add(client);
+
+        Socket target = new Socket();
+        sockets.add(target);
+        try
+        {
+            client.setTcpNoDelay(true);
+            target.setTcpNoDelay(true);
+            target.connect(new InetSocketAddress(targetHost, targetPort));
+
+        } catch (IOException e)
+        {
+            close(client);
+            close(target);
+            return;
+        }
+
+        /* Both sockets are closed when both directions are done */
+        AtomicInteger open = new AtomicInteger(2);
+        pipe(client, target, upstream, upstreamBytes, open);
+        pipe(target, client, downstream, downstreamBytes, open);
+    }
+
+    private void pipe(Socket from, Socket to, Link link, LongAdder bytes, AtomicInteger open)
+    {
+        final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+        threads.execute(() ->
+        {
+            long last = 0;
+            try
+            {
+                InputStream in = from.getInputStream();
+                byte[] buffer = new byte[CHUNK_SIZE];
+                int read;
+                while ((read = in.read(buffer)) >= 0)
+                {
+                    long delay = profile.sampleDelay();
+                    if (profile.sampleStall())
+                    {
+                        stalls.increment();
+                        delay += profile.getStallNanos();
+                    }
+
+                    /* Never overtake the previous chunk */
+                    last = Math.max(last, System.nanoTime() + delay);
+                    put(queue, new Chunk(Arrays.copyOf(buffer, read), last), to);
+                }
+            } catch (IOException | InterruptedException e)
+            {
+                /* Connection closed or proxy stopped */
+            } finally
+            {
+                try
+                {
+                    put(queue, new Chunk(EOF, last), to);
+                } catch (IOException | InterruptedException e)
+                {
+                    /* Writer already gone */
+                }
+            }
+        });
+
+        threads.execute(() ->
+        {
+            try
+            {
+                OutputStream out = to.getOutputStream();
+                while (true)
+                {
+                    Chunk chunk = queue.take();
+                    if (chunk.data == EOF)
+                        break;
+
+                    long at = link.reserve(chunk.data.length, chunk.deliverAt);
+                    sleepUntil(at);
+
+                    out.write(chunk.data);
+                    out.flush();
+                    bytes.add(chunk.data.length);
+                }
+                to.shutdownOutput();
+
+            } catch (IOException | InterruptedException e)
+            {
+                close(from);
+                close(to);
+            } finally
+            {
+                if (open.decrementAndGet() == 0)
+                {
+                    close(from);
+                    close(to);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a chunk unless the writer gave up on its socket
+     */
+    private static void put(BlockingQueue<Chunk> queue, Chunk chunk, Socket to) throws IOException, InterruptedException
+    {
+        while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS))
+        {
+            if (to.isClosed())
+                throw new IOException("Socket closed");
+        }
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException
+    {
+        long wait;
+        while ((wait = nanoTime - System.nanoTime()) > 0)
+        {
+            LockSupport.parkNanos(wait);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+    }
+
+    private void close(Socket socket)
+    {
+        sockets.remove(socket);
+        close((Closeable) socket);
+    }
+
+    private static void close(Closeable closeable)
+    {
+        if (closeable == null)
+            return;
+        try
+        {
+            closeable.close();
+        } catch (IOException e)
+        {
+            /* Ignore */
+        }
+    }
+
+    public Report report()
+    {
+        return new Report(name, profile, connections.longValue(), upstreamBytes.longValue(), downstreamBytes.longValue(), stalls.longValue());
+    }
+
+    private static final class Chunk
+    {
+        final byte[] data;
+        final long deliverAt;
+
+        Chunk(byte[] data, long deliverAt)
+        {
+            this.data = data;
+            this.deliverAt = deliverAt;
+        }
+    }
+
+    /**
+     * Bandwidth of one direction, shared by every connection
+     */
+    private static final class Link
+    {
+        private final double nanosPerByte;
+        private long next;
+
+        Link(long bitsPerSecond)
+        {
+            this.nanosPerByte = bitsPerSecond == 0 ? 0 : 8_000_000_000d / bitsPerSecond;
+        }
+
+        /**
+         * @return time when a chunk available at given time has been
+         *         transmitted
+         */
+        synchronized long reserve(int length, long available)
+        {
+            if (nanosPerByte == 0)
+                return available;
+
+            long start = Math.max(next, available);
+            next = start + (long) (length * nanosPerByte);
+            return next;
+        }
+    }
+
+    public static final class Report
+    {
+        private final String name;
+        private final NetworkProfile profile;
+        private final long connections;
+        private final long upstreamBytes;
+        private final long downstreamBytes;
+        private final long stalls;
+
+        private Report(String name, NetworkProfile profile, long connections, long upstreamBytes, long downstreamBytes, long stalls)
+        {
+            this.name = name;
+            this.profile = profile;
+            this.connections = connections;
+            this.upstreamBytes = upstreamBytes;
+            this.downstreamBytes = downstreamBytes;
+            this.stalls = stalls;
+        }
+
+        /**
+         * @return impaired path, like "sender"
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        public NetworkProfile getProfile()
+        {
+            return profile;
+        }
+
+        public long getConnections()
+        {
+            return connections;
+        }
+
+        /**
+         * @return bytes relayed from clients to the target
+         */
+        public long getUpstreamBytes()
+        {
+            return upstreamBytes;
+        }
+
+        /**
+         * @return bytes relayed from the target to clients
+         */
+        public long getDownstreamBytes()
+        {
+            return downstreamBytes;
+        }
+
+        /**
+         * @return chunks stalled
+         */
+        public long getStalls()
+        {
+            return stalls;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Holds the current interval of a rolling collector and swaps it without
+ * dropping samples of writers still holding the old one, with the same
+ * writer-reader phaser as HdrHistogram's Recorder.
+ * <p>
+ * Writers record between {@link #enter()} and {@link #exit(long)}, the swap
+ * waits for every writer that may still see the ended interval.
+ * </p>
+ */
+public final class IntervalRecorder<T>
+{
+    private final Supplier<T> factory;
+    private volatile T active;
+
+    private final AtomicLong startEpoch = new AtomicLong();
+    private final AtomicLong evenEndEpoch = new AtomicLong();
+    private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+
+    public IntervalRecorder(Supplier<T> factory)
+    {
+        this.factory = factory;
+        this.active = factory.get();
+    }
+
+    /**
+     * @return token to pass to {@link #exit(long)}
+     */
+    public long enter()
+    {
+        return startEpoch.getAndIncrement();
+    }
+
+    /**
+     * @return interval to record into, only between enter and exit
+     */
+    public T current()
+    {
+        return active;
+    }
+
+    public void exit(long token)
+    {
+        if (token < 0)
+            oddEndEpoch.getAndIncrement();
+        else
+            evenEndEpoch.getAndIncrement();
+    }
+
+    /**
+     * Starts a new interval
+     *
+     * @return the interval just ended, no writer records into it anymore
+     */
+    public synchronized T swap()
+    {
+        T ended = active;
+        active = factory.get();
+
+        /* Flip phase, then wait for writers entered in the previous one */
+        boolean nextEven = startEpoch.get() < 0;
+        long initial = nextEven ? 0 : Long.MIN_VALUE;
+        (nextEven ? evenEndEpoch : oddEndEpoch).set(initial);
+
+        long started = startEpoch.getAndSet(initial);
+        AtomicLong ending = nextEven ? oddEndEpoch : evenEndEpoch;
+        while (ending.get() != started)
+            Thread.yield();
+
+        return ended;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size log-linear histogram of non negative values (usually
+ * nanoseconds).
+ * <p>
+ * Every power of two is split in {@value #SUB_BUCKETS} linear buckets, so
+ * percentiles have a relative error below 1/{@value #SUB_BUCKETS} while
+ * memory stays constant whatever the number of recorded values.
+ * </p>
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Values below SUB_BUCKETS are exact, then SUB_BUCKETS for every further power of two */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Adds every value recorded by given histogram
+     */
+    public void add(LatencyHistogram other)
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            long c = other.counts.get(i);
+            if (c > 0)
+                counts.addAndGet(i, c);
+        }
+        count.addAndGet(other.count.get());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return value at given percentile, 0 if empty
+     */
+    public long percentile(double percentile)
+    {
+        long total = count.get();
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(middle(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * @return the max followed by index:count pairs of non empty buckets, to
+     *         be {@link #decode decoded} by another process
+     */
+    public String encode()
+    {
+        StringBuilder builder = new StringBuilder().append(max.get());
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            long c = counts.get(i);
+            if (c > 0)
+                builder.append(' ').append(i).append(':').append(c);
+        }
+        return builder.toString();
+    }
+
+    public static LatencyHistogram decode(String encoded)
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        String[] tokens = encoded.trim().split(" ");
+        histogram.max.set(Long.parseLong(tokens[0]));
+        for (int i = 1; i < tokens.length; i++)
+        {
+            int separator = tokens[i].indexOf(':');
+            int index = Integer.parseInt(tokens[i].substring(0, separator));
+            long c = Long.parseLong(tokens[i].substring(separator + 1));
+
+            histogram.counts.addAndGet(index, c);
+            histogram.count.addAndGet(c);
+        }
+        return histogram;
+    }
+
+    static int index(long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return a representative value of given bucket
+     */
+    static long middle(int index)
+    {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lower + width / 2;
+    }
+}
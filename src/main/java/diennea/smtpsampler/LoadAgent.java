@@ -0,0 +1,594 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+
+/**
+ * Load generator driven by a {@link LoadCoordinator}: runs its slice of the
+ * workload and streams interval results back.
+ * <p>
+ * Protocol, one UTF-8 line per message:
+ * </p>
+ * <pre>
+ * agent:       CHALLENGE nonce
+ * coordinator: JOB, job settings as properties, END signature
+ * agent:       READY [handshakes/s] or ERROR reason
+ * coordinator: GO
+ * agent:       INTERVAL sequence sent failed failedconnections histogram (every interval)
+ * agent:       DONE
+ * coordinator: ABORT (at any time after GO)
+ * </pre>
+ * <p>
+ * Agents serve one coordinator at a time, forever. The signature is the
+ * HMAC-SHA256 of the nonce and the settings with a secret shared by agent and
+ * coordinator, so that only a coordinator can make an agent send mail. Job
+ * file paths are resolved in the agent files directory and cannot leave it.
+ * Once started, agents abort the job as soon as the coordinator sends
+ * anything or goes away.
+ * </p>
+ */
+public class LoadAgent
+{
+    public static final int DEFAULT_PORT = 7525;
+
+    static final String CHALLENGE = "CHALLENGE";
+    static final String JOB = "JOB";
+    static final String END = "END";
+    static final String READY = "READY";
+    static final String ERROR = "ERROR";
+    static final String GO = "GO";
+    static final String INTERVAL = "INTERVAL";
+    static final String DONE = "DONE";
+    static final String ABORT = "ABORT";
+
+    /** Job settings besides traffic classes, prefixed by class name */
+    static final String CLASSES = "classes";
+    static final String HOST = "host";
+    static final String PORT = "port";
+    static final String RUN_ID = "runid";
+    static final String STARTTLS = "starttls";
+    static final String WARMUP = "warmup";
+    static final String TIMEOUT = "timeout";
+    static final String INTERVAL_MILLIS = "interval";
+
+    /** Traffic class settings naming files to read */
+    private static final String[] FILE_OPTIONS = { "file", "credentialsfile", "sendersfile", "recipientsfile" };
+
+    /** Bounds what an unauthenticated peer can make the agent do */
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 30_000;
+    private static final int MAX_JOB_CHARS = 1024 * 1024;
+
+    private final ServerSocket server;
+    private final byte[] secret;
+    private final File filesDirectory;
+
+    /**
+     * @param filesDirectory directory of the files jobs can read, null to
+     *                       reject jobs reading files
+     */
+    public LoadAgent(String host, int port, byte[] secret, File filesDirectory) throws IOException
+    {
+        this.secret = secret;
+        this.filesDirectory = filesDirectory == null ? null : filesDirectory.getCanonicalFile();
+        server = new ServerSocket(port, 1, InetAddress.getByName(host));
+    }
+
+    public void serve()
+    {
+        while (!server.isClosed())
+        {
+            try (Socket socket = server.accept())
+            {
+                System.out.println("Coordinator connected from " + socket.getRemoteSocketAddress());
+                run(socket);
+                System.out.println("Job finished");
+
+            } catch (Exception e)
+            {
+                if (!server.isClosed())
+                    System.err.println("Job failed: " + e);
+            }
+        }
+    }
+
+    public void stop() throws IOException
+    {
+        server.close();
+    }
+
+    private void run(Socket socket) throws Exception
+    {
+        socket.setTcpNoDelay(true);
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        final PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+        final Properties job = new Properties();
+        final Map<TrafficClass,ResultCollector> collectors = new LinkedHashMap<>();
+        final IntervalCollector collector = new IntervalCollector();
+
+        final String nonce = nonce();
+        writer.println(CHALLENGE + " " + nonce);
+        writer.flush();
+
+        Session session;
+        try
+        {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+
+            if (!JOB.equals(reader.readLine()))
+                throw new IOException("Not a coordinator");
+
+            StringBuilder settings = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null && !line.equals(END) && !line.startsWith(END + " "))
+            {
+                settings.append(line).append('\n');
+                if (settings.length() > MAX_JOB_CHARS)
+                    throw new IOException("Job too large");
+            }
+            if (line == null)
+                throw new IOException("Coordinator disconnected");
+
+            byte[] expected = sign(secret, nonce, settings.toString()).getBytes(StandardCharsets.US_ASCII);
+            byte[] received = line.substring(END.length()).trim().getBytes(StandardCharsets.US_ASCII);
+            if (!MessageDigest.isEqual(expected, received))
+                throw new IOException("Bad job signature, check the shared secret");
+
+            socket.setSoTimeout(0);
+            job.load(new StringReader(settings.toString()));
+
+            session = Session.getInstance(SMTPSampler.sessionProperties(Boolean.parseBoolean(job.getProperty(STARTTLS)), false));
+
+            /* Mapped again by every job, files may change in between */
+            Map<String,AddressFile> addressFiles = new HashMap<>();
+            for (String name : job.getProperty(CLASSES).split(","))
+            {
+                final String prefix = name + ".";
+
+                final Map<String,String> files = new HashMap<>();
+                for (String option : FILE_OPTIONS)
+                {
+                    String path = job.getProperty(prefix + option);
+                    if (path != null && !path.isEmpty())
+                        files.put(option, resolve(path));
+                }
+
+                TrafficClass trafficClass = TrafficClass.create(name, session,
+                        key -> files.containsKey(key) ? files.get(key) : job.getProperty(prefix + key), addressFiles, false);
+
+                MimeMessage message = trafficClass.getMessage();
+                message.setHeader(SendMessageTask.RUN_ID_HEADER, job.getProperty(RUN_ID));
+                message.setHeader(SendMessageTask.BODY_CHECKSUM_HEADER, PayloadChecksum.of(message).toString());
+
+                collectors.put(trafficClass, collector);
+            }
+
+        } catch (Exception e)
+        {
+            writer.println(ERROR + " " + e);
+            writer.flush();
+            throw e;
+        }
+
+        final String host = job.getProperty(HOST);
+        final int port = Integer.parseInt(job.getProperty(PORT));
+        final long timeout_millis = Long.parseLong(job.getProperty(TIMEOUT));
+        final long interval_millis = Long.parseLong(job.getProperty(INTERVAL_MILLIS));
+
+        /* The coordinator is silent after the start signal, unless aborting */
+        final AtomicBoolean finished = new AtomicBoolean();
+        final Thread sender = Thread.currentThread();
+        final Thread watcher = new Thread(() -> watch(reader, sender, finished), "coordinator-watcher");
+        watcher.setDaemon(true);
+
+        /* Intervals are aligned on every agent, counting from the start signal */
+        final ScheduledExecutorService streamer = Executors.newSingleThreadScheduledExecutor();
+        final Runnable start = () ->
+        {
+            streamer.scheduleAtFixedRate(() -> send(writer, collector.next()),
+                    interval_millis, interval_millis, TimeUnit.MILLISECONDS);
+            watcher.start();
+        };
+
+        /* Released by the coordinator once every agent is ready */
+        WarmPool warmPool = null;
+        if (Boolean.parseBoolean(job.getProperty(WARMUP)))
+        {
+            int connections = 0;
+            for (TrafficClass trafficClass : collectors.keySet())
+                connections += trafficClass.getNumthreads();
+
+            warmPool = new WarmPool(connections, report ->
+            {
+                try
+                {
+                    awaitGo(reader, writer, READY + " " + report.getHandshakesPerSecond());
+                    start.run();
+                } catch (IOException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } else
+        {
+            awaitGo(reader, writer, READY);
+            start.run();
+        }
+
+        try
+        {
+            SMTPSampler.sendMessages(collectors, session, host, port, SendMessageTask.MESSAGE_ID_HEADER,
+                    null, null, warmPool, (trafficClass, result) -> {}, timeout_millis);
+
+            /* Aborted just as the run ended */
+            if (!finished.compareAndSet(false, true))
+                throw new InterruptedException();
+
+        } catch (InterruptedException aborted)
+        {
+            Thread.interrupted();
+            throw new Exception("Job aborted by the coordinator");
+
+        } finally
+        {
+            finished.set(true);
+            streamer.shutdownNow();
+            streamer.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        /* Last partial interval */
+        send(writer, collector.next());
+
+        synchronized (writer)
+        {
+            writer.println(DONE);
+            writer.flush();
+        }
+    }
+
+    /**
+     * @return given job path within the files directory
+     */
+    private String resolve(String path) throws IOException
+    {
+        if (filesDirectory == null)
+            throw new IOException("Job reads " + path + ", start the agent with -fd to allow files");
+
+        File file = new File(filesDirectory, path).getCanonicalFile();
+        if (!file.toPath().startsWith(filesDirectory.toPath()))
+            throw new IOException("Job file " + path + " is outside of " + filesDirectory);
+
+        return file.getPath();
+    }
+
+    private static String nonce()
+    {
+        byte[] nonce = new byte[16];
+        new SecureRandom().nextBytes(nonce);
+        return Base64.getEncoder().encodeToString(nonce);
+    }
+
+    /**
+     * @return signature of job settings sent in answer to given nonce
+     */
+    static String sign(byte[] secret, String nonce, String settings)
+    {
+        try
+        {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(nonce.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) '\n');
+            return Base64.getEncoder().encodeToString(mac.doFinal(settings.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the secret shared by agents and coordinator, the first line of
+     *         given file
+     */
+    static byte[] readSecret(File file) throws Exception
+    {
+        List<String> lines;
+        try
+        {
+            lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e)
+        {
+            throw new Exception("Cannot read secret " + file + ": " + e, e);
+        }
+
+        if (lines.isEmpty() || lines.get(0).isEmpty())
+            throw new Exception("No secret in " + file);
+
+        return lines.get(0).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void awaitGo(BufferedReader reader, PrintWriter writer, String ready) throws IOException
+    {
+        writer.println(ready);
+        writer.flush();
+
+        String line = reader.readLine();
+        if (!GO.equals(line))
+            throw new IOException("Expected " + GO + " from coordinator, got " + line);
+    }
+
+    /**
+     * Interrupts the sender thread when the coordinator aborts the job or
+     * disconnects before the job is finished
+     */
+    private static void watch(BufferedReader reader, Thread sender, AtomicBoolean finished)
+    {
+        String line;
+        try
+        {
+            line = reader.readLine();
+        } catch (IOException e)
+        {
+            line = null;
+        }
+
+        if (finished.compareAndSet(false, true))
+        {
+            System.err.println(line == null ? "Coordinator disconnected" : "Coordinator sent " + line);
+            sender.interrupt();
+        }
+    }
+
+    private static void send(PrintWriter writer, Interval interval)
+    {
+        synchronized (writer)
+        {
+            writer.println(interval.encode());
+            writer.flush();
+        }
+    }
+
+    /**
+     * Results of an agent in a time interval
+     */
+    public static final class Interval
+    {
+        private final long sequence;
+        private final long sent;
+        private final long failed;
+        private final long failedConnections;
+        private final LatencyHistogram sendTimes;
+
+        Interval(long sequence, long sent, long failed, long failedConnections, LatencyHistogram sendTimes)
+        {
+            this.sequence = sequence;
+            this.sent = sent;
+            this.failed = failed;
+            this.failedConnections = failedConnections;
+            this.sendTimes = sendTimes;
+        }
+
+        String encode()
+        {
+            return INTERVAL + " " + sequence + " " + sent + " " + failed + " " + failedConnections + " " + sendTimes.encode();
+        }
+
+        static Interval decode(String line) throws IOException
+        {
+            String[] tokens = line.split(" ", 6);
+            if (tokens.length < 6 || !INTERVAL.equals(tokens[0]))
+                throw new IOException("Bad interval: " + line);
+
+            return new Interval(Long.parseLong(tokens[1]), Long.parseLong(tokens[2]), Long.parseLong(tokens[3]),
+                    Long.parseLong(tokens[4]), LatencyHistogram.decode(tokens[5]));
+        }
+
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        /**
+         * @return messages sent, failed ones included
+         */
+        public long getSent()
+        {
+            return sent;
+        }
+
+        public long getFailed()
+        {
+            return failed;
+        }
+
+        public long getFailedConnections()
+        {
+            return failedConnections;
+        }
+
+        /**
+         * @return send times of delivered messages, in nanoseconds
+         */
+        public LatencyHistogram getSendTimes()
+        {
+            return sendTimes;
+        }
+    }
+
+    /**
+     * Collects every agent traffic class into intervals
+     */
+    private static final class IntervalCollector implements ResultCollector
+    {
+        private final IntervalRecorder<Current> recorder = new IntervalRecorder<>(Current::new);
+        private long sequence;
+
+        /**
+         * @return the interval just ended, starting a new one
+         */
+        Interval next()
+        {
+            Current ended = recorder.swap();
+            return new Interval(sequence++, ended.sent.longValue(), ended.failed.longValue(),
+                    ended.failedConnections.longValue(), ended.sendTimes);
+        }
+
+        @Override
+        public void start() {}
+
+        @Override
+        public void finishSend() {}
+
+        @Override
+        public void finishReceive() {}
+
+        @Override
+        public void finished() {}
+
+        @Override
+        public void messageSent(long connectionId, int messageNumber, long time, String lastServerResponse, Throwable error)
+        {
+            long token = recorder.enter();
+            try
+            {
+                Current interval = recorder.current();
+                interval.sent.increment();
+                if (error != null)
+                    interval.failed.increment();
+                else
+                    interval.sendTimes.record(time);
+            } finally
+            {
+                recorder.exit(token);
+            }
+        }
+
+        @Override
+        public void connectionHandled(long connectionId, long time, Throwable error)
+        {
+            if (error == null)
+                return;
+
+            long token = recorder.enter();
+            try
+            {
+                recorder.current().failedConnections.increment();
+            } finally
+            {
+                recorder.exit(token);
+            }
+        }
+
+        @Override
+        public void messageReceived(long receivens, long beforesendns, long aftersendns) {}
+    }
+
+    private static final class Current
+    {
+        final LongAdder sent = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder failedConnections = new LongAdder();
+        final LatencyHistogram sendTimes = new LatencyHistogram();
+    }
+
+    public static void main(String... args)
+    {
+        try
+        {
+            DefaultParser parser = new DefaultParser();
+            Options options = new Options();
+            options.addOption("lh", "listenhost", true, "Coordinator connections hostname or IP Address, default to localhost");
+            options.addOption("lp", "listenport", true, "Coordinator connections port, default to " + DEFAULT_PORT);
+            options.addOption("k", "keyfile", true, "File with the secret shared with the coordinator (-ak), required");
+            options.addOption("fd", "filesdir", true, "Directory of the message, credential and address files jobs can read, none by default");
+            options.addOption("help", "help", false, "Print this help");
+
+            CommandLine commandLine = parser.parse(options, args);
+            if (commandLine.hasOption("help")) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("smtpsampler agent", options, true);
+                return;
+            }
+
+            String listenhost = commandLine.getOptionValue("listenhost", "localhost");
+            int listenport = Integer.parseInt(commandLine.getOptionValue("listenport", Integer.toString(DEFAULT_PORT)));
+            String keyfile = commandLine.getOptionValue("keyfile", "");
+            String filesdir = commandLine.getOptionValue("filesdir", "");
+
+            if (keyfile.isEmpty())
+                throw new Exception("A shared secret is required, use -k");
+
+            File directory = null;
+            if (!filesdir.isEmpty())
+            {
+                directory = new File(filesdir);
+                if (!directory.isDirectory())
+                    throw new Exception("Files directory " + filesdir + " does not exist");
+            }
+
+            LoadAgent agent = new LoadAgent(listenhost, listenport, readSecret(new File(keyfile)), directory);
+            System.out.println("Agent listening on " + listenhost + ":" + listenport);
+
+            agent.serve();
+
+        } catch (Exception ex)
+        {
+            System.err.println("Fatal error: " + ex);
+            System.exit(1);
+        }
+    }
+}
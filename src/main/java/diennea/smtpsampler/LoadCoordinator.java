@@ -0,0 +1,264 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import diennea.smtpsampler.collectors.DistributedResultCollector;
+
+/**
+ * Splits a workload among {@link LoadAgent}s, starts them together and
+ * merges the intervals they stream back.
+ * <p>
+ * Messages, threads and rate of every traffic class are split evenly. Agents
+ * read message, credential and address files at the same relative paths in
+ * their own files directory.
+ * </p>
+ */
+public final class LoadCoordinator
+{
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+
+    /** Grace time for agents to report after the run timeout */
+    private static final long GRACE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final List<InetSocketAddress> agents = new ArrayList<>();
+    private final long interval_millis;
+    private final byte[] secret;
+
+    /**
+     * @param agents comma separated host:port list, port defaults to {@value LoadAgent#DEFAULT_PORT}
+     * @param secret secret shared with the agents, signing the jobs
+     */
+    public LoadCoordinator(String agents, long interval_millis, byte[] secret) throws Exception
+    {
+        this.secret = secret;
+        for (String agent : agents.split(","))
+        {
+            agent = agent.trim();
+            int separator = agent.lastIndexOf(':');
+            if (separator < 0)
+                this.agents.add(InetSocketAddress.createUnresolved(agent, LoadAgent.DEFAULT_PORT));
+            else
+                this.agents.add(InetSocketAddress.createUnresolved(agent.substring(0, separator),
+                        Integer.parseInt(agent.substring(separator + 1))));
+        }
+        this.interval_millis = interval_millis;
+    }
+
+    public void run(Map<String,Properties> classes, String host, int port, String runId, boolean starttls, boolean warmup,
+            long timeout_millis, DistributedResultCollector collector) throws Exception
+    {
+        final List<Socket> sockets = new ArrayList<>();
+        final List<BufferedReader> readers = new ArrayList<>();
+        final List<PrintWriter> writers = new ArrayList<>();
+
+        ExecutorService listeners = Executors.newFixedThreadPool(agents.size());
+        boolean finished = false;
+        try
+        {
+            for (int i = 0; i < agents.size(); i++)
+            {
+                Properties job = new Properties();
+                job.setProperty(LoadAgent.HOST, host);
+                job.setProperty(LoadAgent.PORT, Integer.toString(port));
+                job.setProperty(LoadAgent.RUN_ID, runId);
+                job.setProperty(LoadAgent.STARTTLS, Boolean.toString(starttls));
+                job.setProperty(LoadAgent.WARMUP, Boolean.toString(warmup));
+                job.setProperty(LoadAgent.TIMEOUT, Long.toString(timeout_millis));
+                job.setProperty(LoadAgent.INTERVAL_MILLIS, Long.toString(interval_millis));
+
+                List<String> names = new ArrayList<>();
+                int c = 0;
+                for (Map.Entry<String,Properties> entry : classes.entrySet())
+                {
+                    Properties slice = slice(entry.getValue(), i, c++);
+                    if (slice == null)
+                        continue;
+
+                    names.add(entry.getKey());
+                    for (String key : slice.stringPropertyNames())
+                        job.setProperty(entry.getKey() + "." + key, slice.getProperty(key));
+                }
+
+                if (names.isEmpty())
+                    throw new Exception("Agent " + name(i) + " gets no traffic, use at least as many threads as agents");
+
+                job.setProperty(LoadAgent.CLASSES, String.join(",", names));
+
+                InetSocketAddress agent = agents.get(i);
+                Socket socket = new Socket();
+                sockets.add(socket);
+                socket.connect(new InetSocketAddress(agent.getHostString(), agent.getPort()), CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+
+                readers.add(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)));
+                writers.add(new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+
+                String challenge = readers.get(i).readLine();
+                if (challenge == null || !challenge.startsWith(LoadAgent.CHALLENGE + " "))
+                    throw new Exception("Agent " + name(i) + " did not send a challenge: " + challenge);
+                String nonce = challenge.substring(LoadAgent.CHALLENGE.length() + 1);
+
+                StringWriter stored = new StringWriter();
+                job.store(stored, null);
+
+                /* Signed as the agent reads it, one line at a time */
+                StringBuilder settings = new StringBuilder();
+                for (String line : stored.toString().split("\\r?\\n"))
+                    settings.append(line).append('\n');
+
+                PrintWriter writer = writers.get(i);
+                writer.println(LoadAgent.JOB);
+                writer.print(settings);
+                writer.println(LoadAgent.END + " " + LoadAgent.sign(secret, nonce, settings.toString()));
+                writer.flush();
+            }
+
+            /* Agents set up their classes (and warm connections) concurrently */
+            for (int i = 0; i < agents.size(); i++)
+            {
+                String line = readers.get(i).readLine();
+                if (line == null || !line.startsWith(LoadAgent.READY))
+                    throw new Exception("Agent " + name(i) + " not ready: " + (line == null ? "disconnected" : line));
+
+                String handshakes = line.substring(LoadAgent.READY.length()).trim();
+                collector.agentReady(name(i), handshakes.isEmpty() ? 0 : Double.parseDouble(handshakes));
+            }
+
+            collector.start();
+
+            for (PrintWriter writer : writers)
+            {
+                writer.println(LoadAgent.GO);
+                writer.flush();
+            }
+
+            for (int i = 0; i < agents.size(); i++)
+            {
+                final String name = name(i);
+                final BufferedReader reader = readers.get(i);
+                listeners.execute(() -> listen(name, reader, collector));
+            }
+
+            listeners.shutdown();
+            finished = listeners.awaitTermination(
+                    timeout_millis > 0 ? timeout_millis + GRACE_MILLIS : Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            if (!finished)
+                System.err.println("Agents not finished in time");
+
+            collector.finishSend();
+
+        } finally
+        {
+            listeners.shutdownNow();
+
+            /* Agents also abort when their connection drops, the line just makes it explicit */
+            if (!finished)
+            {
+                for (PrintWriter writer : writers)
+                {
+                    writer.println(LoadAgent.ABORT);
+                    writer.flush();
+                }
+            }
+
+            for (Socket socket : sockets)
+            {
+                try
+                {
+                    socket.close();
+                } catch (IOException e)
+                {
+                    /* Already closed */
+                }
+            }
+        }
+    }
+
+    private static void listen(String agent, BufferedReader reader, DistributedResultCollector collector)
+    {
+        try
+        {
+            for (String line = reader.readLine(); line != null; line = reader.readLine())
+            {
+                if (line.equals(LoadAgent.DONE))
+                {
+                    collector.agentFinished(agent, true);
+                    return;
+                }
+                collector.intervalReceived(agent, LoadAgent.Interval.decode(line));
+            }
+        } catch (IOException | RuntimeException e)
+        {
+            System.err.println("Agent " + agent + " failed: " + e);
+        }
+
+        collector.agentFinished(agent, false);
+    }
+
+    /**
+     * @return settings of given agent for a traffic class, null if the agent
+     *         gets no thread of the class
+     */
+    private Properties slice(Properties settings, int agent, int trafficClass)
+    {
+        int count = agents.size();
+
+        /* Remainders go to different agents for every class */
+        int position = Math.floorMod(agent - trafficClass, count);
+
+        long nummessages = Long.parseLong(settings.getProperty("nummessages"));
+        int numthreads = Integer.parseInt(settings.getProperty("numthreads"));
+        double rate = Double.parseDouble(settings.getProperty("rate"));
+
+        long messages = nummessages / count + (position < nummessages % count ? 1 : 0);
+        int threads = numthreads / count + (position < numthreads % count ? 1 : 0);
+        if (threads == 0)
+            return null;
+
+        Properties slice = new Properties();
+        slice.putAll(settings);
+        slice.setProperty("nummessages", Long.toString(messages));
+        slice.setProperty("numthreads", Integer.toString(threads));
+        slice.setProperty("rate", Double.toString(rate * messages / nummessages));
+        return slice;
+    }
+
+    private String name(int agent)
+    {
+        return agents.get(agent).getHostString() + ":" + agents.get(agent).getPort();
+    }
+}
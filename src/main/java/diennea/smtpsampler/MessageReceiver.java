@@ -7,11 +7,13 @@ import java.net.UnknownHostException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.MessagingException;
-import javax.mail.internet.MimeMessage;
+import javax.mail.internet.InternetHeaders;
 
 import org.subethamail.smtp.MessageContext;
 import org.subethamail.smtp.MessageHandler;
@@ -27,24 +29,40 @@ import org.subethamail.smtp.server.SMTPServer;
  */
 public class MessageReceiver
 {
+    /** Name prefix of the threads handling inbound SMTP sessions */
+    public static final String THREAD_NAME_PREFIX = "smtpsampler-receiver-";
+    
     private final ResultCollector resultCollector;
     private final String messageIDHeader;
     
-    private final CountDownLatch countDown;
+    private final DeliveryTracker tracker;
     private final SMTPServer server;
     
-    private final ConcurrentMap<Integer,Long> messageIDReceiveTimes;
+    private final ConcurrentMap<Long,Long> messageIDReceiveTimes;
+    
+    private CorrelationWindow window;
     
-    public MessageReceiver(ResultCollector resultCollector, int messages, String host, int port, String messageIDHeader ) throws UnknownHostException
+    private final PayloadVerifier verifier = new PayloadVerifier();
+    
+    public MessageReceiver(ResultCollector resultCollector, DeliveryTracker tracker, long messages, String host, int port, String messageIDHeader ) throws UnknownHostException
     {
-        server = new SMTPServer( new MessageHandlerFactory()
+        server = new NoDelaySMTPServer( new MessageHandlerFactory()
         {
             @Override
             public MessageHandler create(MessageContext ctx)
             {
                 return new CountingHandler();
             }
-        });
+        }, null, Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                return new Thread(r, THREAD_NAME_PREFIX + count.incrementAndGet());
+            }
+        }));
         
 //        server.setMaxConnections(1000);
         
@@ -54,15 +72,24 @@ public class MessageReceiver
         this.resultCollector = resultCollector;
         this.messageIDHeader = messageIDHeader;
         
-        this.countDown = new CountDownLatch(messages);
-        this.messageIDReceiveTimes = new ConcurrentHashMap<>(messages);
+        this.tracker = tracker;
+        this.messageIDReceiveTimes = new ConcurrentHashMap<>((int) Math.min(messages, 1 << 20));
+    }
+    
+    public void flushResults(Map<Long,Long> messageIDBeforeSendTimes, Map<Long,Long> messageIDAfterSendTimes)
+    {
+        flushResults(resultCollector, messageIDBeforeSendTimes, messageIDAfterSendTimes);
     }
     
-    public void flushResults(Map<Integer,Long> messageIDBeforeSendTimes, Map<Integer,Long> messageIDAfterSendTimes)
+    /**
+     * Matches receive times of given sent messages, reporting them to given
+     * collector
+     */
+    public void flushResults(ResultCollector collector, Map<Long,Long> messageIDBeforeSendTimes, Map<Long,Long> messageIDAfterSendTimes)
     {
-        for( Map.Entry<Integer,Long> entry : messageIDReceiveTimes.entrySet() )
+        for( Map.Entry<Long,Long> entry : messageIDReceiveTimes.entrySet() )
         {
-            Integer messageID = entry.getKey();
+            Long messageID = entry.getKey();
             
             Long receive = messageIDReceiveTimes.get(messageID);
             
@@ -70,24 +97,116 @@ public class MessageReceiver
             Long after  = messageIDAfterSendTimes.get(messageID);
             
             if ( before != null )
-                resultCollector.messageReceived(receive, before, after );
+                collector.messageReceived(receive, before, after );
         }
         
     }
     
+    /**
+     * Offers STARTTLS to senders, the server certificate is taken from the
+     * standard javax.net.ssl.keyStore system properties
+     */
+    public void enableTLS()
+    {
+        server.setEnableTLS(true);
+    }
+    
+    /**
+     * Matches receive times within given window as messages arrive instead
+     * of retaining them until {@link #flushResults}, must be called before
+     * {@link #start()}
+     */
+    public void useCorrelationWindow(CorrelationWindow window)
+    {
+        this.window = window;
+    }
+    
     public void start()
     {
+        tracker.start();
+        if (window != null)
+            window.start();
         server.start();
     }
     
+    /**
+     * @return the port the receiver listens on, once started when given port was 0
+     */
+    public int getPort()
+    {
+        return server.getPort();
+    }
+    
     public void stop()
     {
         server.stop();
+        if (window != null)
+            window.stop();
+        tracker.stop();
     }
     
+    /**
+     * Waits until every sent message has been received or has expired
+     */
     public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
     {
-        return countDown.await(timeout, unit);
+        return tracker.awaitCompletion(timeout, unit);
+    }
+    
+    public DeliveryTracker getTracker()
+    {
+        return tracker;
+    }
+    
+    public DeliveryTracker.Report trackingReport()
+    {
+        return tracker.report();
+    }
+
+    public PayloadVerifier.Report integrityReport()
+    {
+        return verifier.report();
+    }
+
+    /**
+     * Benchmark data of a received message
+     */
+    static final class ReceivedMessage
+    {
+        final String messageID;
+        
+        final PayloadChecksum expected;
+        final PayloadChecksum actual;
+        
+        ReceivedMessage(String messageID, PayloadChecksum expected, PayloadChecksum actual)
+        {
+            this.messageID = messageID;
+            this.expected = expected;
+            this.actual = actual;
+        }
+    }
+    
+    /**
+     * Reads a received message: headers are parsed to extract benchmark data
+     * while the body is only streamed through its checksum, without retaining
+     * it
+     */
+    static ReceivedMessage scan(InputStream data, String messageIDHeader) throws IOException
+    {
+        InternetHeaders headers;
+        try
+        {
+            headers = new InternetHeaders(data);
+            
+        } catch (MessagingException e)
+        {
+            throw new IOException(e);
+        }
+        
+        return new ReceivedMessage(
+                headers.getHeader(messageIDHeader, null),
+                PayloadChecksum.parse(headers.getHeader(SendMessageTask.BODY_CHECKSUM_HEADER, null)),
+                PayloadChecksum.read(data));
     }
 
     private final class CountingHandler implements MessageHandler
@@ -109,32 +228,28 @@ public class MessageReceiver
         @Override
         public void data(InputStream data) throws RejectException, TooMuchDataException, IOException
         {
-            try
-            {
-               MimeMessage message = new MimeMessage(null,data);
-                
-               messageID = message.getHeader(messageIDHeader,null);
-               
-                /*
-                 * Save the time just after receive the message, this avoid
-                 * reschedulation timing overhead on massively concurrent
-                 * systems.
-                 */
-               long end = System.nanoTime();
-               
-               messageIDReceiveTimes.put(Integer.valueOf(messageID), end);
-                
-            } catch (MessagingException e)
-            {
-                throw new IOException(e);
-            }
+            ReceivedMessage message = scan(data, messageIDHeader);
+            messageID = message.messageID;
+            
+            /*
+             * Save the time just after receive the message, this avoid
+             * reschedulation timing overhead on massively concurrent
+             * systems.
+             */
+            long end = System.nanoTime();
+            
+            Long id = Long.valueOf(messageID);
+            if (window != null)
+                window.received(id, end);
+            else
+                messageIDReceiveTimes.put(id, end);
+            tracker.arrived(id);
+            
+            verifier.verify(id, message.expected, message.actual);
         }
 
         @Override
-        public void done()
-        {
-            countDown.countDown();
-        }
+        public void done() {}
     }
     
 }
@@ -0,0 +1,197 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.text.DecimalFormat;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Network conditions injected by an {@link ImpairmentProxy}, applied to each
+ * direction of every connection.
+ * <p>
+ * A profile is written as comma separated settings, every one optional:
+ * </p>
+ * <pre>
+ * latency=40,jitter=5,bandwidth=20mbit,stall=0.001,stallms=200
+ * </pre>
+ * <ul>
+ * <li>latency: one way delay, in milliseconds</li>
+ * <li>jitter: max random deviation of the delay, in milliseconds</li>
+ * <li>bandwidth: capacity shared by every connection, in bit/s with an
+ * optional kbit, mbit or gbit suffix</li>
+ * <li>stall: probability of stalling a transmitted chunk and the ones after,
+ * like a retransmission after a packet loss</li>
+ * <li>stallms: duration of a stall, in milliseconds, defaults to 200</li>
+ * </ul>
+ */
+public final class NetworkProfile
+{
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final long bitsPerSecond;
+    private final double stallProbability;
+    private final long stallNanos;
+
+    public NetworkProfile(long latencyNanos, long jitterNanos, long bitsPerSecond, double stallProbability, long stallNanos)
+    {
+        this.latencyNanos = latencyNanos;
+        this.jitterNanos = jitterNanos;
+        this.bitsPerSecond = bitsPerSecond;
+        this.stallProbability = stallProbability;
+        this.stallNanos = stallNanos;
+    }
+
+    public static NetworkProfile parse(String spec) throws Exception
+    {
+        long latency = 0;
+        long jitter = 0;
+        long bandwidth = 0;
+        double stall = 0;
+        long stallms = 200;
+
+        for (String setting : spec.split(","))
+        {
+            if (setting.trim().isEmpty())
+                continue;
+
+            int separator = setting.indexOf('=');
+            if (separator < 0)
+                throw new Exception("Bad network profile setting '" + setting + "', expected key=value");
+
+            String key = setting.substring(0, separator).trim().toLowerCase(Locale.ROOT);
+            String value = setting.substring(separator + 1).trim().toLowerCase(Locale.ROOT);
+            try
+            {
+                switch (key)
+                {
+                    case "latency":
+                        latency = Long.parseLong(value);
+                        break;
+                    case "jitter":
+                        jitter = Long.parseLong(value);
+                        break;
+                    case "bandwidth":
+                        bandwidth = parseBandwidth(value);
+                        break;
+                    case "stall":
+                        stall = Double.parseDouble(value);
+                        break;
+                    case "stallms":
+                        stallms = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new Exception("Unknown network profile setting '" + key + "'");
+                }
+            } catch (NumberFormatException e)
+            {
+                throw new Exception("Bad network profile value '" + setting + "'");
+            }
+        }
+
+        return new NetworkProfile(
+                TimeUnit.MILLISECONDS.toNanos(latency),
+                TimeUnit.MILLISECONDS.toNanos(jitter),
+                bandwidth,
+                stall,
+                TimeUnit.MILLISECONDS.toNanos(stallms));
+    }
+
+    private static long parseBandwidth(String value) throws Exception
+    {
+        long multiplier = 1;
+        if (value.endsWith("gbit"))
+            multiplier = 1_000_000_000L;
+        else if (value.endsWith("mbit"))
+            multiplier = 1_000_000L;
+        else if (value.endsWith("kbit"))
+            multiplier = 1_000L;
+
+        String number = multiplier == 1 ? value : value.substring(0, value.length() - 4).trim();
+        if (number.isEmpty())
+            throw new Exception("Bad network profile bandwidth '" + value + "', expected a number of bit/s like 20mbit");
+
+        return (long) (Double.parseDouble(number) * multiplier);
+    }
+
+    /**
+     * @return delay of a chunk sent now, latency plus a random jitter
+     */
+    long sampleDelay()
+    {
+        if (jitterNanos == 0)
+            return latencyNanos;
+
+        long jitter = ThreadLocalRandom.current().nextLong(-jitterNanos, jitterNanos + 1);
+        return Math.max(0, latencyNanos + jitter);
+    }
+
+    /**
+     * @return true if a chunk should be stalled
+     */
+    boolean sampleStall()
+    {
+        return stallProbability > 0 && ThreadLocalRandom.current().nextDouble() < stallProbability;
+    }
+
+    public long getLatencyNanos()
+    {
+        return latencyNanos;
+    }
+
+    public long getJitterNanos()
+    {
+        return jitterNanos;
+    }
+
+    /**
+     * @return bandwidth cap, 0 means unlimited
+     */
+    public long getBitsPerSecond()
+    {
+        return bitsPerSecond;
+    }
+
+    public double getStallProbability()
+    {
+        return stallProbability;
+    }
+
+    public long getStallNanos()
+    {
+        return stallNanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        DecimalFormat format = new DecimalFormat("0.###");
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("latency ").append(format.format(latencyNanos / 1_000_000d)).append(" ms");
+        builder.append(", jitter ").append(format.format(jitterNanos / 1_000_000d)).append(" ms");
+        builder.append(", bandwidth ").append(bitsPerSecond == 0 ? "unlimited" : format.format(bitsPerSecond / 1_000_000d) + " Mbit/s");
+        if (stallProbability > 0)
+            builder.append(", stalls ").append(format.format(stallProbability * 100)).append(" % of ")
+                   .append(format.format(stallNanos / 1_000_000d)).append(" ms");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+
+import org.subethamail.smtp.AuthenticationHandlerFactory;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * SMTP server accepting connections with TCP_NODELAY, so that replies are not
+ * held by Nagle's algorithm, see {@link NoDelaySocketFactory}
+ */
+public class NoDelaySMTPServer extends SMTPServer
+{
+    public NoDelaySMTPServer(MessageHandlerFactory handlerFactory)
+    {
+        super(handlerFactory);
+    }
+
+    public NoDelaySMTPServer(MessageHandlerFactory handlerFactory, AuthenticationHandlerFactory authHandlerFact,
+            ExecutorService executorService)
+    {
+        super(handlerFactory, authHandlerFact, executorService);
+    }
+
+    @Override
+    protected ServerSocket createServerSocket() throws IOException
+    {
+        InetSocketAddress address = getBindAddress() == null
+                ? new InetSocketAddress(getPort())
+                : new InetSocketAddress(getBindAddress(), getPort());
+
+        ServerSocket socket = new ServerSocket()
+        {
+            @Override
+            public Socket accept() throws IOException
+            {
+                Socket accepted = super.accept();
+                try
+                {
+                    accepted.setTcpNoDelay(true);
+                } catch (SocketException e)
+                {
+                    /* Already closed by the peer, the session will notice */
+                }
+                return accepted;
+            }
+        };
+        socket.bind(address, getBacklog());
+
+        if (getPort() == 0)
+            setPort(socket.getLocalPort());
+
+        return socket;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+
+/**
+ * Creates sockets with TCP_NODELAY: SMTP writes a small segment (a command,
+ * the end of data) and then waits for the reply, which Nagle's algorithm
+ * would hold until the delayed ACK of the previous segment, about 40 ms.
+ * <p>
+ * Set as {@code mail.smtp.socketFactory} for JavaMail, STARTTLS layers on
+ * these sockets too. Receivers use {@link NoDelaySMTPServer}.
+ * </p>
+ */
+public final class NoDelaySocketFactory extends SocketFactory
+{
+    public static final NoDelaySocketFactory INSTANCE = new NoDelaySocketFactory();
+
+    private NoDelaySocketFactory()
+    {
+    }
+
+    @Override
+    public Socket createSocket() throws IOException
+    {
+        return noDelay(new Socket());
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException
+    {
+        return noDelay(new Socket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+    {
+        return noDelay(new Socket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException
+    {
+        return noDelay(new Socket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+    {
+        return noDelay(new Socket(address, port, localAddress, localPort));
+    }
+
+    private static Socket noDelay(Socket socket) throws IOException
+    {
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+}
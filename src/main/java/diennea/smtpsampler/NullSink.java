@@ -0,0 +1,108 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.UnknownHostException;
+
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * Minimal in-process SMTP server on loopback which accepts and discards every
+ * message as fast as possible. Bound to an ephemeral port.
+ */
+public class NullSink
+{
+    private final SMTPServer server;
+
+    private volatile int boundPort = -1;
+
+    public NullSink() throws UnknownHostException
+    {
+        server = new NoDelaySMTPServer( new MessageHandlerFactory()
+        {
+            @Override
+            public MessageHandler create(MessageContext ctx)
+            {
+                return new DiscardingHandler();
+            }
+        })
+        {
+            @Override
+            protected ServerSocket createServerSocket() throws IOException
+            {
+                ServerSocket socket = super.createServerSocket();
+                boundPort = socket.getLocalPort();
+                return socket;
+            }
+        };
+
+        server.setBindAddress(InetAddress.getLoopbackAddress());
+        server.setPort(0);
+        server.setDisableReceivedHeaders(true);
+    }
+
+    public void start()
+    {
+        server.start();
+    }
+
+    public void stop()
+    {
+        server.stop();
+    }
+
+    public String getHost()
+    {
+        return InetAddress.getLoopbackAddress().getHostAddress();
+    }
+
+    public int getPort()
+    {
+        return boundPort;
+    }
+
+    private static final class DiscardingHandler implements MessageHandler
+    {
+        @Override
+        public void from(String from) throws RejectException {}
+
+        @Override
+        public void recipient(String recipient) throws RejectException {}
+
+        @Override
+        public void data(InputStream data) throws RejectException, TooMuchDataException, IOException
+        {
+            final byte[] buffer = new byte[8192];
+            while (data.read(buffer) >= 0) {}
+        }
+
+        @Override
+        public void done() {}
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.util.CRLFOutputStream;
+
+/**
+ * Length and CRC32 of a message body as transmitted by SMTP: CRLF line
+ * endings, ending with a line terminator.
+ */
+public final class PayloadChecksum
+{
+    private static final int BUFFER_SIZE = 8192;
+
+    private final long length;
+    private final long crc;
+
+    public PayloadChecksum(long length, long crc)
+    {
+        this.length = length;
+        this.crc = crc;
+    }
+
+    /**
+     * Evaluates the body checksum of a template message, once: every message
+     * sent from the template has the same body.
+     */
+    public static PayloadChecksum of(MimeMessage template) throws MessagingException, IOException
+    {
+        /* Same steps as a send, body encoding may be updated on save */
+        MimeMessage message = new MimeMessage(template);
+        message.setHeader(SendMessageTask.MESSAGE_ID_HEADER, "0");
+        message.saveChanges();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (CRLFOutputStream out = new CRLFOutputStream(bytes))
+        {
+            message.writeTo(out);
+        }
+        byte[] data = bytes.toByteArray();
+
+        int body = 0;
+        for (int i = 0; i + 3 < data.length; i++)
+        {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n')
+            {
+                body = i + 4;
+                break;
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, body, data.length - body);
+        long length = data.length - body;
+
+        /* The client terminates the last line before the final dot */
+        if (length > 0 && (data[data.length - 2] != '\r' || data[data.length - 1] != '\n'))
+        {
+            crc.update('\r');
+            crc.update('\n');
+            length += 2;
+        }
+
+        return new PayloadChecksum(length, crc.getValue());
+    }
+
+    /**
+     * Evaluates the checksum of the rest of given stream, without retaining
+     * it
+     */
+    public static PayloadChecksum read(InputStream body) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        long length = 0;
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = body.read(buffer)) >= 0)
+        {
+            crc.update(buffer, 0, read);
+            length += read;
+        }
+
+        return new PayloadChecksum(length, crc.getValue());
+    }
+
+    /**
+     * @param value header value, see {@link #toString()}
+     * @return parsed checksum, null if malformed
+     */
+    public static PayloadChecksum parse(String value)
+    {
+        if (value == null)
+            return null;
+
+        int separator = value.indexOf('/');
+        if (separator < 0)
+            return null;
+
+        try
+        {
+            return new PayloadChecksum(
+                    Long.parseLong(value.substring(0, separator).trim()),
+                    Long.parseLong(value.substring(separator + 1).trim(), 16));
+        } catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    public long getCrc()
+    {
+        return crc;
+    }
+
+    public boolean matches(PayloadChecksum other)
+    {
+        return length == other.length && crc == other.crc;
+    }
+
+    /**
+     * @return header value: length and hex CRC32, like "1024/1c291ca3"
+     */
+    @Override
+    public String toString()
+    {
+        return length + "/" + Long.toHexString(crc);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares received message bodies with the checksum of their template.
+ * <p>
+ * Shorter bodies are accounted as truncated, any other difference as
+ * corrupted. IDs of the first broken messages are retained for the report.
+ * </p>
+ */
+public class PayloadVerifier
+{
+    /** Max number of broken message IDs retained for the report */
+    private static final int MAX_LOGGED_IDS = 20;
+
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder corrupted = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+    private final LongAdder unverified = new LongAdder();
+
+    private final List<Long> corruptedIDs = new ArrayList<>();
+    private final List<Long> truncatedIDs = new ArrayList<>();
+
+    /**
+     * @param expected checksum declared by the sender, null if missing
+     * @param actual checksum of the received body
+     */
+    public void verify(long messageID, PayloadChecksum expected, PayloadChecksum actual)
+    {
+        if (expected == null)
+        {
+            unverified.increment();
+
+        } else if (expected.matches(actual))
+        {
+            verified.increment();
+
+        } else if (actual.getLength() < expected.getLength())
+        {
+            truncated.increment();
+            log(truncatedIDs, messageID);
+
+        } else
+        {
+            corrupted.increment();
+            log(corruptedIDs, messageID);
+        }
+    }
+
+    private static void log(List<Long> ids, long messageID)
+    {
+        synchronized (ids)
+        {
+            if (ids.size() < MAX_LOGGED_IDS)
+                ids.add(messageID);
+        }
+    }
+
+    public Report report()
+    {
+        List<Long> corruptedCopy;
+        synchronized (corruptedIDs)
+        {
+            corruptedCopy = new ArrayList<>(corruptedIDs);
+        }
+
+        List<Long> truncatedCopy;
+        synchronized (truncatedIDs)
+        {
+            truncatedCopy = new ArrayList<>(truncatedIDs);
+        }
+
+        return new Report(verified.longValue(), corrupted.longValue(), truncated.longValue(), unverified.longValue(),
+                corruptedCopy, truncatedCopy);
+    }
+
+    public static final class Report
+    {
+        private final long verified;
+        private final long corrupted;
+        private final long truncated;
+        private final long unverified;
+        private final List<Long> corruptedIDs;
+        private final List<Long> truncatedIDs;
+
+        private Report(long verified, long corrupted, long truncated, long unverified, List<Long> corruptedIDs, List<Long> truncatedIDs)
+        {
+            this.verified = verified;
+            this.corrupted = corrupted;
+            this.truncated = truncated;
+            this.unverified = unverified;
+            this.corruptedIDs = Collections.unmodifiableList(corruptedIDs);
+            this.truncatedIDs = Collections.unmodifiableList(truncatedIDs);
+        }
+
+        /**
+         * @return messages received with the expected body
+         */
+        public long getVerified()
+        {
+            return verified;
+        }
+
+        /**
+         * @return messages received with a different body of at least the
+         *         expected length
+         */
+        public long getCorrupted()
+        {
+            return corrupted;
+        }
+
+        /**
+         * @return messages received with a shorter body
+         */
+        public long getTruncated()
+        {
+            return truncated;
+        }
+
+        /**
+         * @return messages received without a checksum header
+         */
+        public long getUnverified()
+        {
+            return unverified;
+        }
+
+        /**
+         * @return IDs of the first corrupted messages
+         */
+        public List<Long> getCorruptedIDs()
+        {
+            return corruptedIDs;
+        }
+
+        /**
+         * @return IDs of the first truncated messages
+         */
+        public List<Long> getTruncatedIDs()
+        {
+            return truncatedIDs;
+        }
+    }
+}
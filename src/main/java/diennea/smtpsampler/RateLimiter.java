@@ -0,0 +1,59 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces message sends to a fixed rate, shared by every connection of a
+ * traffic class
+ */
+public final class RateLimiter
+{
+    private final long intervalNanos;
+    private final AtomicLong next = new AtomicLong(Long.MIN_VALUE);
+
+    public RateLimiter(double messagesPerSecond)
+    {
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / messagesPerSecond);
+    }
+
+    /**
+     * Waits for the next send slot
+     */
+    public void acquire() throws InterruptedException
+    {
+        final long now = System.nanoTime();
+
+        /* Idle time is not accumulated: no bursts after a pause */
+        long previous = next.getAndUpdate(slot -> Math.max(slot, now) + intervalNanos);
+        long slot = Math.max(previous, now);
+
+        long wait;
+        while ((wait = slot - System.nanoTime()) > 0)
+        {
+            LockSupport.parkNanos(wait);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+    }
+}
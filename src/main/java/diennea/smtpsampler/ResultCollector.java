@@ -37,10 +37,27 @@ public interface ResultCollector
     
     public void finished();
 
-    public void messageSent(int connectionId, int messageNumber, long time, String lastServerResponse, Throwable error);
+    public default void calibrated(Calibration calibration) {}
+
+    public void messageSent(long connectionId, int messageNumber, long time, String lastServerResponse, Throwable error);
+    
+    public void connectionHandled(long connectionId, long time, Throwable error );
     
-    public void connectionHandled(int connectionId, long time, Throwable error );
+    /**
+     * @param mechanism AUTH mechanism, null if none could be negotiated
+     */
+    public default void authenticated(long connectionId, String mechanism, long time, Throwable error) {}
     
     public void messageReceived(long receivens, long beforesendns, long aftersendns);
+    
+    public default void clientResources(ClientMonitor.Report report) {}
+    
+    public default void deliveryTracked(long deadlinens, DeliveryTracker.Report report) {}
+    
+    public default void payloadVerified(PayloadVerifier.Report report) {}
+    
+    public default void networkImpaired(ImpairmentProxy.Report report) {}
+    
+    public default void connectionsWarmed(WarmPool.Report report) {}
 
 }
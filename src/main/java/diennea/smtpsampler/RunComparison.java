@@ -0,0 +1,196 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.File;
+import java.text.DecimalFormat;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.random.Well19937c;
+import org.apache.commons.math3.stat.StatUtils;
+import org.apache.commons.math3.stat.descriptive.rank.Percentile;
+import org.apache.commons.math3.stat.inference.MannWhitneyUTest;
+import org.apache.commons.math3.stat.inference.TTest;
+
+/**
+ * Compares two exported runs: Welch's t test on means, Mann-Whitney U test on
+ * distributions and a percentile bootstrap confidence interval on the median
+ * difference, for every metric.
+ */
+public class RunComparison
+{
+    static final String IMPROVED = "improved";
+    static final String REGRESSED = "regressed";
+    static final String NO_DIFFERENCE = "no significant difference";
+    static final String NOT_ENOUGH_SAMPLES = "not enough samples";
+
+    private final int bootstrap;
+    private final double significance;
+    private final RandomGenerator random;
+
+    public RunComparison(int bootstrap, double significance, long seed)
+    {
+        this.bootstrap = bootstrap;
+        this.significance = significance;
+        this.random = new Well19937c(seed);
+    }
+
+    public void compare(RunExport base, RunExport candidate)
+    {
+        final DecimalFormat format = new DecimalFormat("0.000");
+
+        System.out.println("Comparison (candidate vs base):");
+        System.out.println("\n  Base run:              " + base.getRunId() + ", " + base.getDelivered() + " delivered, "
+            + format.format(base.getDelivered() / base.getWallSendSeconds()) + " msg/s");
+        System.out.println("  Candidate run:         " + candidate.getRunId() + ", " + candidate.getDelivered() + " delivered, "
+            + format.format(candidate.getDelivered() / candidate.getWallSendSeconds()) + " msg/s");
+
+        /* A single figure per run, no distribution to test */
+        if (base.getHandshakesPerSecond() > 0 && candidate.getHandshakesPerSecond() > 0)
+            System.out.println("  Handshake speed:       " + format.format(base.getHandshakesPerSecond()) + " -> "
+                + format.format(candidate.getHandshakesPerSecond()) + " handshakes/s ("
+                + formatRelative(format, candidate.getHandshakesPerSecond() - base.getHandshakesPerSecond(), base.getHandshakesPerSecond()) + ")");
+
+        compare("Throughput", "msg/s", base.getThroughputSeries(), candidate.getThroughputSeries(), true);
+        compare("Message delivery time", "ms", base.getSendTimes(), candidate.getSendTimes(), false);
+        compare("Message round trip time", "ms", base.getRoundTripTimes(), candidate.getRoundTripTimes(), false);
+    }
+
+    /**
+     * Prints the comparison of a metric
+     *
+     * @return the verdict printed
+     */
+    String compare(String metric, String unit, double[] base, double[] candidate, boolean higherIsBetter)
+    {
+        final DecimalFormat format = new DecimalFormat("0.000");
+        final int confidence = (int) ((1.0 - significance) * 100);
+
+        System.out.println("\n  " + metric);
+
+        if (base.length < 2 || candidate.length < 2)
+        {
+            System.out.println("    Verdict:             " + NOT_ENOUGH_SAMPLES);
+            return NOT_ENOUGH_SAMPLES;
+        }
+
+        final Percentile percentile = new Percentile();
+
+        double baseMedian = percentile.evaluate(base, 50);
+        double candidateMedian = percentile.evaluate(candidate, 50);
+
+        double baseMean = StatUtils.mean(base);
+        double candidateMean = StatUtils.mean(candidate);
+
+        double welch = new TTest().tTest(base, candidate);
+        double mannWhitney = new MannWhitneyUTest().mannWhitneyUTest(base, candidate);
+
+        /* Percentile bootstrap of the median difference */
+        double[] differences = new double[bootstrap];
+        double[] baseResample = new double[base.length];
+        double[] candidateResample = new double[candidate.length];
+        for (int i = 0; i < bootstrap; i++)
+        {
+            resample(base, baseResample);
+            resample(candidate, candidateResample);
+            differences[i] = percentile.evaluate(candidateResample, 50) - percentile.evaluate(baseResample, 50);
+        }
+        double low = percentile.evaluate(differences, 100 * significance / 2);
+        double high = percentile.evaluate(differences, 100 * (1 - significance / 2));
+
+        double delta = candidateMedian - baseMedian;
+
+        System.out.println("    Median:              " + format.format(baseMedian) + " -> " + format.format(candidateMedian) + " " + unit
+            + " (" + formatRelative(format, delta, baseMedian) + ")");
+        System.out.println("    Delta at " + confidence + "%:        [" + format.format(low) + ", " + format.format(high) + "] " + unit
+            + " (" + formatRelative(format, low, baseMedian) + ", " + formatRelative(format, high, baseMedian) + ")");
+        System.out.println("    Mean:                " + format.format(baseMean) + " -> " + format.format(candidateMean) + " " + unit
+            + " (" + formatRelative(format, candidateMean - baseMean, baseMean) + ")");
+        System.out.println("    Welch t test:        p=" + format.format(welch));
+        System.out.println("    Mann-Whitney U test: p=" + format.format(mannWhitney));
+
+        boolean medianShift = mannWhitney < significance && (low > 0 || high < 0);
+        boolean meanShift = welch < significance;
+
+        /* A mean moving with a steady median is a change in the tail */
+        String verdict;
+        if (medianShift)
+            verdict = (delta > 0) == higherIsBetter ? IMPROVED : REGRESSED;
+        else if (meanShift)
+            verdict = ((candidateMean > baseMean) == higherIsBetter ? IMPROVED : REGRESSED) + " on mean only, median unchanged";
+        else
+            verdict = NO_DIFFERENCE;
+
+        System.out.println("    Verdict:             " + verdict);
+        return verdict;
+    }
+
+    private void resample(double[] source, double[] target)
+    {
+        for (int i = 0; i < target.length; i++)
+            target[i] = source[random.nextInt(source.length)];
+    }
+
+    private static String formatRelative(DecimalFormat format, double delta, double base)
+    {
+        if (base == 0)
+            return "n/a";
+
+        double relative = 100 * delta / base;
+        return (relative >= 0 ? "+" : "") + format.format(relative) + "%";
+    }
+
+    public static void main(String... args)
+    {
+        try
+        {
+            DefaultParser parser = new DefaultParser();
+            Options options = new Options();
+            options.addOption("b", "bootstrap", true, "Number of bootstrap resamples, defaults to 2000");
+            options.addOption("sl", "significance", true, "Significance level, defaults to 0.05");
+            options.addOption("seed", "seed", true, "Random seed of the bootstrap, defaults to 1");
+
+            CommandLine commandLine = parser.parse(options, args);
+            if (commandLine.getArgs().length != 2) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("smtpsampler compare base.json candidate.json", options, true);
+                return;
+            }
+
+            int bootstrap = Integer.parseInt(commandLine.getOptionValue("bootstrap", "2000"));
+            double significance = Double.parseDouble(commandLine.getOptionValue("significance", "0.05"));
+            long seed = Long.parseLong(commandLine.getOptionValue("seed", "1"));
+
+            RunExport base = RunExport.read(new File(commandLine.getArgs()[0]));
+            RunExport candidate = RunExport.read(new File(commandLine.getArgs()[1]));
+
+            new RunComparison(bootstrap, significance, seed).compare(base, candidate);
+
+        } catch (Exception ex)
+        {
+            System.err.println("Fatal error: " + ex);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Results of a run exported as JSON, to be compared with
+ * {@code smtpsampler compare}. Latency distributions are uniform samples
+ * bounded in size, throughput is the number of messages sent in every
+ * second of the run.
+ */
+public class RunExport
+{
+    public static final int VERSION = 1;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private int version = VERSION;
+    private String runId;
+    private long messages;
+    private long delivered;
+    private long failed;
+    private double wallSendSeconds;
+    private double[] throughputSeries = new double[0];
+    private double[] sendTimes = new double[0];
+    private double[] roundTripTimes = new double[0];
+    private double handshakesPerSecond;
+
+    public static RunExport read(File file) throws IOException
+    {
+        RunExport export = MAPPER.readValue(file, RunExport.class);
+        if (export.version != VERSION)
+            throw new IOException("Unsupported export version " + export.version + " in " + file);
+        return export;
+    }
+
+    public void write(File file) throws IOException
+    {
+        MAPPER.writerWithDefaultPrettyPrinter().writeValue(file, this);
+    }
+
+    public int getVersion()
+    {
+        return version;
+    }
+
+    public void setVersion(int version)
+    {
+        this.version = version;
+    }
+
+    public String getRunId()
+    {
+        return runId;
+    }
+
+    public void setRunId(String runId)
+    {
+        this.runId = runId;
+    }
+
+    public long getMessages()
+    {
+        return messages;
+    }
+
+    public void setMessages(long messages)
+    {
+        this.messages = messages;
+    }
+
+    public long getDelivered()
+    {
+        return delivered;
+    }
+
+    public void setDelivered(long delivered)
+    {
+        this.delivered = delivered;
+    }
+
+    public long getFailed()
+    {
+        return failed;
+    }
+
+    public void setFailed(long failed)
+    {
+        this.failed = failed;
+    }
+
+    public double getWallSendSeconds()
+    {
+        return wallSendSeconds;
+    }
+
+    public void setWallSendSeconds(double wallSendSeconds)
+    {
+        this.wallSendSeconds = wallSendSeconds;
+    }
+
+    /**
+     * @return messages sent in every full second of the run
+     */
+    public double[] getThroughputSeries()
+    {
+        return throughputSeries;
+    }
+
+    public void setThroughputSeries(double[] throughputSeries)
+    {
+        this.throughputSeries = throughputSeries;
+    }
+
+    /**
+     * @return sampled message send times, in milliseconds
+     */
+    public double[] getSendTimes()
+    {
+        return sendTimes;
+    }
+
+    public void setSendTimes(double[] sendTimes)
+    {
+        this.sendTimes = sendTimes;
+    }
+
+    /**
+     * @return sampled message round trip times, in milliseconds
+     */
+    public double[] getRoundTripTimes()
+    {
+        return roundTripTimes;
+    }
+
+    public void setRoundTripTimes(double[] roundTripTimes)
+    {
+        this.roundTripTimes = roundTripTimes;
+    }
+
+    /**
+     * @return connections established per second before a warm run, 0 if
+     *         connections were not established ahead
+     */
+    public double getHandshakesPerSecond()
+    {
+        return handshakesPerSecond;
+    }
+
+    public void setHandshakesPerSecond(double handshakesPerSecond)
+    {
+        this.handshakesPerSecond = handshakesPerSecond;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Locale;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * SMTP AUTH dialogues, run on an already connected transport (after
+ * STARTTLS) so that authentication is timed on its own.
+ */
+public final class SMTPAuth
+{
+    private static final int AUTHENTICATED = 235;
+    private static final int CONTINUE = 334;
+
+    /** Mechanisms tried, in order, when none is configured */
+    private static final Mechanism[] NEGOTIATED = { Mechanism.LOGIN, Mechanism.PLAIN, Mechanism.CRAM_MD5 };
+
+    public enum Mechanism
+    {
+        PLAIN("PLAIN"), LOGIN("LOGIN"), CRAM_MD5("CRAM-MD5"), XOAUTH2("XOAUTH2");
+
+        private final String name;
+
+        Mechanism(String name)
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public static Mechanism parse(String name) throws Exception
+        {
+            for (Mechanism mechanism : values())
+                if (mechanism.name.equalsIgnoreCase(name.trim()))
+                    return mechanism;
+
+            throw new Exception("Unknown AUTH mechanism '" + name + "', expected PLAIN, LOGIN, CRAM-MD5 or XOAUTH2");
+        }
+    }
+
+    private SMTPAuth()
+    {
+    }
+
+    /**
+     * @param preferred configured mechanism, null to pick one offered by the server
+     * @return the mechanism to use with given server
+     */
+    public static Mechanism negotiate(SMTPTransport transport, Mechanism preferred) throws MessagingException
+    {
+        if (preferred != null)
+            return preferred;
+
+        String offered = transport.getExtensionParameter("AUTH");
+        if (offered == null)
+            throw new MessagingException("Server does not offer AUTH");
+
+        String[] names = offered.toUpperCase(Locale.ROOT).split(" ");
+        for (Mechanism mechanism : NEGOTIATED)
+            for (String name : names)
+                if (mechanism.name.equals(name))
+                    return mechanism;
+
+        throw new MessagingException("No supported AUTH mechanism offered: " + offered);
+    }
+
+    /**
+     * @param secret password, or OAuth 2 access token with XOAUTH2
+     * @throws AuthenticationFailedException when the server rejects given credentials
+     */
+    public static void authenticate(SMTPTransport transport, Mechanism mechanism, String username, String secret) throws MessagingException
+    {
+        int code;
+        switch (mechanism)
+        {
+            case PLAIN:
+                code = transport.simpleCommand("AUTH PLAIN " + plain(username, secret));
+                break;
+
+            case LOGIN:
+                code = transport.simpleCommand("AUTH LOGIN");
+                if (code == CONTINUE)
+                    code = transport.simpleCommand(base64(username));
+                if (code == CONTINUE)
+                    code = transport.simpleCommand(base64(secret));
+                break;
+
+            case CRAM_MD5:
+                code = transport.simpleCommand("AUTH CRAM-MD5");
+                if (code == CONTINUE)
+                    code = transport.simpleCommand(cramMD5(username, secret, transport.getLastServerResponse().substring(4).trim()));
+                break;
+
+            case XOAUTH2:
+                code = transport.simpleCommand("AUTH XOAUTH2 " + xoauth2(username, secret));
+
+                /* Errors come as a challenge, an empty response gets the final reply */
+                if (code == CONTINUE)
+                    code = transport.simpleCommand("");
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unsupported mechanism " + mechanism);
+        }
+
+        if (code != AUTHENTICATED)
+            throw new AuthenticationFailedException(mechanism.name + " as " + username + ": " + transport.getLastServerResponse().trim());
+    }
+
+    /**
+     * @return PLAIN initial response (RFC 4616)
+     */
+    static String plain(String username, String secret)
+    {
+        return base64("\0" + username + "\0" + secret);
+    }
+
+    /**
+     * @param challenge base64 server challenge
+     * @return CRAM-MD5 response to given challenge (RFC 2195)
+     */
+    static String cramMD5(String username, String secret, String challenge) throws MessagingException
+    {
+        return base64(username + " " + hmacMD5(secret, Base64.getDecoder().decode(challenge)));
+    }
+
+    /**
+     * @return XOAUTH2 initial response
+     */
+    static String xoauth2(String username, String token)
+    {
+        return base64("user=" + username + "\001auth=Bearer " + token + "\001\001");
+    }
+
+    /**
+     * @return given value base64 encoded, as LOGIN sends username and password
+     */
+    static String base64(String value)
+    {
+        return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String hmacMD5(String key, byte[] challenge) throws MessagingException
+    {
+        try
+        {
+            Mac mac = Mac.getInstance("HmacMD5");
+            mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacMD5"));
+
+            StringBuilder hex = new StringBuilder(32);
+            for (byte b : mac.doFinal(challenge))
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return hex.toString();
+
+        } catch (GeneralSecurityException e)
+        {
+            throw new MessagingException("CRAM-MD5 not available", e);
+        }
+    }
+}
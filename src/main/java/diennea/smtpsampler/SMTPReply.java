@@ -0,0 +1,178 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.MessagingException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+/**
+ * Reply code and enhanced status code (RFC 3463) of a server response, or a
+ * dropped connection when no response was received
+ */
+public final class SMTPReply
+{
+    /** Code of replies never received because the connection was dropped */
+    public static final int DROPPED = 0;
+
+    /** Code of errors without any server response, like unknown hosts */
+    public static final int UNKNOWN = -1;
+
+    private static final Pattern REPLY = Pattern.compile("^(\\d{3})(?:[ -]+([245]\\.\\d{1,3}\\.\\d{1,3}))?");
+
+    /** JavaMail reports greeting and EHLO failures as text */
+    private static final Pattern EMBEDDED_REPLY = Pattern.compile("response: \\[?(\\d{3})");
+
+    private final int code;
+    private final String enhancedStatus;
+
+    private SMTPReply(int code, String enhancedStatus)
+    {
+        this.code = code;
+        this.enhancedStatus = enhancedStatus;
+    }
+
+    /**
+     * Classifies the outcome of a command
+     *
+     * @param lastServerResponse last response read by the transport, may be null
+     * @param error error raised by the command, null on success
+     */
+    public static SMTPReply parse(String lastServerResponse, Throwable error)
+    {
+        if (error == null)
+        {
+            SMTPReply reply = parse(lastServerResponse);
+            return reply == null ? new SMTPReply(UNKNOWN, null) : reply;
+        }
+
+        /* Rejections carry their own response, the last one may belong to another recipient */
+        for (Throwable cause = error; cause != null; cause = next(cause))
+        {
+            if (cause instanceof SMTPSendFailedException
+                || cause instanceof SMTPAddressFailedException
+                || cause instanceof SMTPSenderFailedException)
+            {
+                SMTPReply reply = parse(cause.getMessage());
+                if (reply != null)
+                    return reply;
+            }
+        }
+
+        for (Throwable cause = error; cause != null; cause = next(cause))
+        {
+            /* No server to drop the connection */
+            if (cause instanceof UnknownHostException)
+                return new SMTPReply(UNKNOWN, null);
+            if (cause instanceof IOException)
+                return new SMTPReply(DROPPED, null);
+        }
+
+        SMTPReply reply = parse(error.getMessage());
+        if (reply != null)
+            return reply;
+
+        if (error.getMessage() != null)
+        {
+            Matcher matcher = EMBEDDED_REPLY.matcher(error.getMessage());
+            if (matcher.find())
+                return new SMTPReply(Integer.parseInt(matcher.group(1)), null);
+        }
+
+        return new SMTPReply(UNKNOWN, null);
+    }
+
+    private static SMTPReply parse(String response)
+    {
+        if (response == null)
+            return null;
+
+        Matcher matcher = REPLY.matcher(response.trim());
+        if (!matcher.find())
+            return null;
+
+        return new SMTPReply(Integer.parseInt(matcher.group(1)), matcher.group(2));
+    }
+
+    private static Throwable next(Throwable error)
+    {
+        if (error instanceof MessagingException)
+        {
+            Exception next = ((MessagingException) error).getNextException();
+            if (next != null)
+                return next;
+        }
+        return error.getCause() == error ? null : error.getCause();
+    }
+
+    /**
+     * @return three digit reply code, {@link #DROPPED} or {@link #UNKNOWN}
+     */
+    public int getCode()
+    {
+        return code;
+    }
+
+    /**
+     * @return enhanced status code like 4.7.0, null if not given
+     */
+    public String getEnhancedStatus()
+    {
+        return enhancedStatus;
+    }
+
+    /**
+     * @return true for transient failures (4xx) and dropped connections, the
+     *         way servers push back under load
+     */
+    public boolean isDeferral()
+    {
+        return code == DROPPED || (code >= 400 && code < 500);
+    }
+
+    /**
+     * @return a label grouping equal replies, like "451 4.3.0" or "dropped"
+     */
+    public String getKey()
+    {
+        switch (code)
+        {
+            case DROPPED:
+                return "dropped";
+            case UNKNOWN:
+                return "other error";
+            default:
+                return enhancedStatus == null ? Integer.toString(code) : code + " " + enhancedStatus;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return getKey();
+    }
+}
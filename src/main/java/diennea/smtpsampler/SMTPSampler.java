@@ -22,21 +22,33 @@ package diennea.smtpsampler;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
+import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
@@ -45,7 +57,12 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 
+import diennea.smtpsampler.collectors.BackpressureResultCollector;
+import diennea.smtpsampler.collectors.CompositeResultCollector;
 import diennea.smtpsampler.collectors.ConsoleResultCollector;
+import diennea.smtpsampler.collectors.DistributedResultCollector;
+import diennea.smtpsampler.collectors.ExportResultCollector;
+import diennea.smtpsampler.collectors.SoakResultCollector;
 
 /**
  * Benchs an SMTPServer
@@ -61,9 +78,30 @@ public class SMTPSampler {
 
     public static void main(String... args) {
         
+        if (args.length > 0 && "sink".equals(args[0]))
+        {
+            DeliverySink.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
+        if (args.length > 0 && "agent".equals(args[0]))
+        {
+            LoadAgent.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
+        if (args.length > 0 && "compare".equals(args[0]))
+        {
+            RunComparison.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
         MessageReceiver receiver = null;
         boolean listen = false;
         
+        ImpairmentProxy senderProxy = null;
+        ImpairmentProxy listenProxy = null;
+        
         try {
             DefaultParser parser = new DefaultParser();
             Options options = new Options();            
@@ -72,24 +110,60 @@ public class SMTPSampler {
             options.addOption("u", "username", true, "Username");
             options.addOption("pwd", "password", true, "Password");
             options.addOption("a", "auth", false, "Use authentication");
+            options.addOption("cf", "credentialsfile", true, "Authenticate connections as the users of a file of username:secret lines, the secret being a password or an XOAUTH2 token");
+            options.addOption("cs", "credentialselection", true, "How connections pick credentials: roundrobin or random, defaults to roundrobin");
+            options.addOption("am", "authmechanism", true, "AUTH mechanism: PLAIN, LOGIN, CRAM-MD5 or XOAUTH2, defaults to one offered by the server");
             options.addOption("mf", "file", true, "Use file as message and do not generate a test message");
             
             options.addOption("s", "subject", true, "Subject of the generated email");
             options.addOption("ms", "messagesize", true, "Size of the body of the generated message, defaults to 10 bytes");
             options.addOption("f", "from", true, "Value for the From header of the test message");
             options.addOption("t", "to", true, "Value for the To header of the test message");
+            options.addOption("rc", "recipients", true, "Number of recipients of the generated message, derived from the To address, defaults to 1");
+            options.addOption("rf", "recipientsfile", true, "Pick the recipients of every message from a file of addresses, one per line");
+            options.addOption("sf", "sendersfile", true, "Pick the sender of every message from a file of addresses, one per line");
+            options.addOption("as", "addressselection", true, "How addresses are picked from address files: uniform, zipfian or sequential, defaults to uniform");
+            options.addOption("zs", "zipfexponent", true, "Exponent of zipfian address selection, defaults to 1");
+            options.addOption("dw", "domainweights", true, "Pick recipient domains by weight, like example.com=50,example.org=30,*=20");
             
             options.addOption("n", "nummessages", true, "Number of messages, defaults to 1");
             options.addOption("nc", "nummessagesperconnection", true, "Number of messages per connection, defaults to 1");
             options.addOption("tx", "numthreads", true, "Number of concurrent threads/connections");
+            options.addOption("r", "rate", true, "Max messages per second, defaults to 0, which means 'unlimited'");
+            options.addOption("sc", "scenario", true, "Run the traffic classes of a scenario file concurrently, command line values are class defaults");
+            options.addOption("tr", "trace", true, "Replay a trace of recorded messages (timestamp in ms,size,recipients,class[,eml file]) instead of sending -n messages");
+            options.addOption("ts", "tracespeedup", true, "Trace replay speed factor, defaults to 1");
+            options.addOption("tp", "tracepasses", true, "Times the trace is replayed, defaults to 1, 0 means 'until timeout'");
+            options.addOption("wu", "warmup", false, "Establish and authenticate a connection per thread before starting the clock, reporting handshakes/s on their own");
             options.addOption("tt", "timeout", true, "Max time for execution of the test, in seconds, defaults to 0, which means 'forever'");
             options.addOption("v", "verbose", false, "Verbose output");
             options.addOption("stls", "starttls", false, "Use STARTTLS");
             options.addOption("d", "javamaildebug", false, "Enable JavaMail Debug");
+            options.addOption("ni", "impairment", true, "Connect to the SMTP Server through an in-process proxy impairing the network, like latency=40,jitter=5,bandwidth=20mbit,stall=0.001,stallms=200 (latency and jitter in ms, one way)");
             
             options.addOption("l", "listen", false, "Listen on a generated inbound SMTP Server for message delivery");
             options.addOption("lh", "listenhost", true, "SMTP Server hostname or IP Address, default to localhost");
             options.addOption("lp", "listenport", true, "SMTP Server port, default to 25");
+            options.addOption("ltls", "listentls", false, "Offer STARTTLS on the listening server, using the javax.net.ssl.keyStore certificate");
+            options.addOption("lni", "listenimpairment", true, "Impair the network between the tested server and the listening server, see -ni");
+            options.addOption("dl", "deadline", true, "Max delivery time of a message to the listening server before accounting it as lost, in seconds, defaults to 60");
+            
+            options.addOption("ag", "agents", true, "Split the load among 'smtpsampler agent' processes, as a comma separated host:port list");
+            options.addOption("ai", "agentinterval", true, "Interval of results streamed by agents, in seconds, defaults to 1");
+            options.addOption("ak", "agentkey", true, "File with the secret shared with the agents, required with -ag");
+            options.addOption("sr", "sinkresults", true, "Merge round trip results streamed by 'smtpsampler sink' in the given file");
+            options.addOption("rid", "runid", true, "Run ID embedded in every message, defaults to a random ID");
+            
+            options.addOption("dt", "deferralthreshold", true, "Deferral rate (4xx replies and dropped connections) flagged in the report, in percent, defaults to 5");
+            options.addOption("db", "deferralbucket", true, "Width of the time buckets of server replies, in seconds, defaults to 10");
+            
+            options.addOption("o", "output", true, "Export results as JSON, to be compared with 'smtpsampler compare'");
+            
+            options.addOption("soak", "soak", false, "Soak mode: memory does not grow with the number of messages, round trips are matched within the deadline and results are checkpointed");
+            options.addOption("ck", "checkpoint", true, "Soak mode checkpoint CSV file, defaults to soak-checkpoints.csv");
+            options.addOption("ci", "checkpointinterval", true, "Soak mode checkpoint interval, in seconds, defaults to 60");
+            
+            options.addOption("cal", "calibrate", false, "Measure the sampler's own ceiling against an in-process null sink before the test, with a sample of up to " + Calibration.MAX_MESSAGES + " messages");
             
             CommandLine commandLine = parser.parse(options, args);
             if (args.length == 0) {
@@ -104,24 +178,36 @@ public class SMTPSampler {
             String username = commandLine.getOptionValue("username", "");
             String password = commandLine.getOptionValue("password", "");
             boolean auth = commandLine.hasOption("auth");
+            String credentialsfile = commandLine.getOptionValue("credentialsfile", "");
+            String credentialselection = commandLine.getOptionValue("credentialselection", "roundrobin");
+            String authmechanism = commandLine.getOptionValue("authmechanism", "");
             boolean starttls = commandLine.hasOption("starttls");
             boolean javamaildebug = commandLine.hasOption("javamaildebug");
             String subject = commandLine.getOptionValue("subject", "test");
             int messagesize = Integer.parseInt(commandLine.getOptionValue("messagesize", "10"));
             String from = commandLine.getOptionValue("from", "from@localhost");
             String to = commandLine.getOptionValue("to", "to@localhost");
+            int recipients = Integer.parseInt(commandLine.getOptionValue("recipients", "1"));
+            String recipientsfile = commandLine.getOptionValue("recipientsfile", "");
+            String sendersfile = commandLine.getOptionValue("sendersfile", "");
+            String addressselection = commandLine.getOptionValue("addressselection", "uniform");
+            double zipfexponent = Double.parseDouble(commandLine.getOptionValue("zipfexponent", "1"));
+            String domainweights = commandLine.getOptionValue("domainweights", "");
+            double rate = Double.parseDouble(commandLine.getOptionValue("rate", "0"));
+            String scenario = commandLine.getOptionValue("scenario", "");
+            String trace = commandLine.getOptionValue("trace", "");
+            double tracespeedup = Double.parseDouble(commandLine.getOptionValue("tracespeedup", "1"));
+            int tracepasses = Integer.parseInt(commandLine.getOptionValue("tracepasses", "1"));
+            boolean warmup = commandLine.hasOption("warmup");
+            String agents = commandLine.getOptionValue("agents", "");
+            String agentkey = commandLine.getOptionValue("agentkey", "");
+            int agentinterval_seconds = Integer.parseInt(commandLine.getOptionValue("agentinterval", "1"));
             
             int numthreads = Integer.parseInt(commandLine.getOptionValue("numthreads", "1"));
             
-            int nummessages = Integer.parseInt(commandLine.getOptionValue("nummessages", "1"));
+            long nummessages = Long.parseLong(commandLine.getOptionValue("nummessages", "1"));
             int nummessagesperconnection = Integer.parseInt(commandLine.getOptionValue("nummessagesperconnection", "1"));
             
-            if ( nummessages < numthreads )
-                throw new Exception("Number of messages must be greater or equal to thread number");
-            
-            /* Correct num messages per connection if nummessages is too low (to force all thread use) */
-            nummessagesperconnection = Math.min( nummessages / numthreads, nummessagesperconnection );
-            
             int timeout_seconds = Integer.parseInt(commandLine.getOptionValue("timeout", "0"));
             boolean hasTimeout = timeout_seconds > 0;
             long timeout_millis = TimeUnit.SECONDS.toMillis(timeout_seconds);
@@ -130,11 +216,22 @@ public class SMTPSampler {
             listen = commandLine.hasOption("listen");
             String listenhost = commandLine.getOptionValue("listenhost", "localhost");
             int listenport = Integer.parseInt(commandLine.getOptionValue("listenport", "25"));
+            boolean listentls = commandLine.hasOption("listentls");
+            String listenimpairment = commandLine.getOptionValue("listenimpairment", "");
+            String impairment = commandLine.getOptionValue("impairment", "");
+            int deadline_seconds = Integer.parseInt(commandLine.getOptionValue("deadline", "60"));
+            boolean calibrate = commandLine.hasOption("calibrate");
+            String sinkresults = commandLine.getOptionValue("sinkresults", "");
+            String runid = commandLine.getOptionValue("runid", UUID.randomUUID().toString());
+            String output = commandLine.getOptionValue("output", "");
+            double deferralthreshold = Double.parseDouble(commandLine.getOptionValue("deferralthreshold", "5"));
+            int deferralbucket_seconds = Integer.parseInt(commandLine.getOptionValue("deferralbucket", "10"));
+            boolean soak = commandLine.hasOption("soak");
+            String checkpoint = commandLine.getOptionValue("checkpoint", "soak-checkpoints.csv");
+            int checkpoint_seconds = Integer.parseInt(commandLine.getOptionValue("checkpointinterval", "60"));
 
-            File messagefile = null;
             if (!file.isEmpty()) {
-                messagefile = new File(file);
-                file = messagefile.getAbsolutePath();
+                file = new File(file).getAbsolutePath();
             }
             if (verbose) {
                 System.out.println("Options:");
@@ -144,102 +241,264 @@ public class SMTPSampler {
                 System.out.println("\tauth:" + auth);
                 System.out.println("\tusername:" + username);
                 System.out.println("\tpassword:" + password);
+                System.out.println("\tcredentialsfile:" + credentialsfile);
+                System.out.println("\tcredentialselection:" + credentialselection);
+                System.out.println("\tauthmechanism:" + authmechanism);
                 System.out.println("\tfile:" + file);
                 System.out.println("\tsubject:" + subject);
                 System.out.println("\tmessagesize:" + messagesize + " (bytes)");
                 System.out.println("\tfrom:" + from);
                 System.out.println("\tto:" + to);
+                System.out.println("\trecipients:" + recipients);
+                System.out.println("\trecipientsfile:" + recipientsfile);
+                System.out.println("\tsendersfile:" + sendersfile);
+                System.out.println("\taddressselection:" + addressselection);
+                System.out.println("\tzipfexponent:" + zipfexponent);
+                System.out.println("\tdomainweights:" + domainweights);
+                System.out.println("\trate:" + rate);
+                System.out.println("\tscenario:" + scenario);
+                System.out.println("\ttrace:" + trace);
+                System.out.println("\ttracespeedup:" + tracespeedup);
+                System.out.println("\ttracepasses:" + tracepasses);
+                System.out.println("\twarmup:" + warmup);
+                System.out.println("\tagents:" + agents);
+                System.out.println("\tagentinterval:" + agentinterval_seconds);
+                System.out.println("\tagentkey:" + agentkey);
                 System.out.println("\tnummessages:" + nummessages);
                 System.out.println("\tnummessagesperconnection:" + nummessagesperconnection);
                 System.out.println("\tnumthreads:" + numthreads);
                 System.out.println("\tlisten:" + listen);
                 System.out.println("\tlistenhost:" + listenhost);
                 System.out.println("\tlistenport:" + listenport);
+                System.out.println("\tlistentls:" + listentls);
+                System.out.println("\tlistenimpairment:" + listenimpairment);
+                System.out.println("\timpairment:" + impairment);
+                System.out.println("\tdeadline:" + deadline_seconds);
+                System.out.println("\tsinkresults:" + sinkresults);
+                System.out.println("\trunid:" + runid);
+                System.out.println("\tdeferralthreshold:" + deferralthreshold);
+                System.out.println("\tdeferralbucket:" + deferralbucket_seconds);
+                System.out.println("\toutput:" + output);
+                System.out.println("\tsoak:" + soak);
+                System.out.println("\tcheckpoint:" + checkpoint);
+                System.out.println("\tcheckpointinterval:" + checkpoint_seconds);
+                System.out.println("\tcalibrate:" + calibrate);
                 System.out.println("\ttimeout:" + timeout_seconds);
                 System.out.println("\tverbose:" + verbose);
                 System.out.println("\tjavamaildebug:" + javamaildebug);
             }
 
-            if (!auth) {
-                username = null;
-                password = null;
-            } else if (username.trim().isEmpty()) {
-                throw new Exception("Username is required with -auth flag");
-            }
-            
+            Session session = Session.getDefaultInstance(sessionProperties(starttls, javamaildebug));
+
             
+            /* Command line values, defaults of every traffic class */
+            Properties defaults = new Properties();
+            defaults.setProperty("username", username);
+            defaults.setProperty("password", password);
+            defaults.setProperty("auth", Boolean.toString(auth));
+            defaults.setProperty("credentialsfile", credentialsfile);
+            defaults.setProperty("credentialselection", credentialselection);
+            defaults.setProperty("authmechanism", authmechanism);
+            defaults.setProperty("file", file);
+            defaults.setProperty("subject", subject);
+            defaults.setProperty("messagesize", Integer.toString(messagesize));
+            defaults.setProperty("from", from);
+            defaults.setProperty("to", to);
+            defaults.setProperty("recipients", Integer.toString(recipients));
+            defaults.setProperty("recipientsfile", recipientsfile);
+            defaults.setProperty("sendersfile", sendersfile);
+            defaults.setProperty("addressselection", addressselection);
+            defaults.setProperty("zipfexponent", Double.toString(zipfexponent));
+            defaults.setProperty("domainweights", domainweights);
+            defaults.setProperty("nummessages", Long.toString(nummessages));
+            defaults.setProperty("nummessagesperconnection", Integer.toString(nummessagesperconnection));
+            defaults.setProperty("numthreads", Integer.toString(numthreads));
+            defaults.setProperty("rate", Double.toString(rate));
+            
+            final List<TrafficClass> classes = scenario.isEmpty()
+                    ? Collections.singletonList(TrafficClass.create("default", session, defaults::getProperty, new HashMap<>(), !trace.isEmpty()))
+                    : Scenario.load(new File(scenario), session, defaults, !trace.isEmpty());
+            
+            if (warmup && !trace.isEmpty())
+                throw new Exception("Trace replay opens a connection per message, it does not support -wu");
+            
+            if (!trace.isEmpty() && !(tracespeedup > 0))
+                throw new Exception("Trace speed-up must be positive, got " + tracespeedup);
+            
+            if (!trace.isEmpty() && (tracepasses < 0 || tracepasses == 0 && !hasTimeout))
+                throw new Exception("Endless trace replay (-tp 0) requires a -tt timeout");
+            
+            if (soak && !sinkresults.isEmpty())
+                throw new Exception("Soak mode does not support sink results, use -l");
+            
+            if (soak && !output.isEmpty())
+                throw new Exception("Soak mode does not support result export, its throughput series grows with the run");
+            
+            if (soak && calibrate)
+                throw new Exception("Soak mode does not support calibration, calibrate with a separate run");
+            
+            /* Agents send, the coordinator only merges their results */
+            if (!agents.isEmpty()) {
+                if (listen || !sinkresults.isEmpty() || soak || !trace.isEmpty() || calibrate || !impairment.isEmpty() || !output.isEmpty())
+                    throw new Exception("Distributed runs support none of -l, -sr, -soak, -tr, -cal, -ni and -o");
+                
+                Map<String,Properties> settings = scenario.isEmpty()
+                        ? Collections.singletonMap("default", defaults)
+                        : Scenario.settings(new File(scenario), defaults);
+                
+                DistributedResultCollector distributed = new DistributedResultCollector(agentinterval_seconds, TimeUnit.SECONDS, verbose);
+                if (agentkey.isEmpty())
+                    throw new Exception("Agents require the shared secret, use -ak");
+                
+                new LoadCoordinator(agents, TimeUnit.SECONDS.toMillis(agentinterval_seconds), LoadAgent.readSecret(new File(agentkey)))
+                        .run(settings, host, port, runid, starttls, warmup, timeout_millis, distributed);
+                distributed.finished();
+                return;
+            }
             
-            Properties props = new Properties();
-            props.putAll(System.getProperties());
-            if (starttls)
+            boolean receive = listen || !sinkresults.isEmpty();
+            
+            ResultCollector collector = new CompositeResultCollector(
+                    new ConsoleResultCollector(scenario.isEmpty() ? null : "overall", verbose, receive),
+                    new BackpressureResultCollector(deferralbucket_seconds, TimeUnit.SECONDS, deferralthreshold / 100));
+            if (!output.isEmpty())
+                collector = new CompositeResultCollector(collector, new ExportResultCollector(new File(output), runid));
+            if (soak)
+                collector = new CompositeResultCollector(collector,
+                        new SoakResultCollector(new File(checkpoint), checkpoint_seconds, TimeUnit.SECONDS));
+            
+            /* Every message event goes to its class collector too, the overall report comes last */
+            final Map<TrafficClass,ResultCollector> collectors = new LinkedHashMap<>();
+            ResultCollector lifecycle = collector;
+            if (scenario.isEmpty())
             {
-                props.put("mail.smtp.starttls.enable", "true");
-                props.put("mail.smtp.ssl.trust", "*");
-                props.put("mail.smtp.starttls.required", "true");
-            }
-            if (javamaildebug)
+                collectors.put(classes.get(0), collector);
+            } else
             {
-                props.put("mail.debug", "true");
+                List<ResultCollector> all = new ArrayList<>();
+                for (TrafficClass trafficClass : classes)
+                {
+                    ResultCollector classCollector = new ConsoleResultCollector(trafficClass.getName(), verbose, receive);
+                    all.add(classCollector);
+                    collectors.put(trafficClass, new CompositeResultCollector(classCollector, collector));
+                }
+                all.add(collector);
+                lifecycle = new CompositeResultCollector(all);
             }
             
-            Session session = Session.getDefaultInstance(props);
-
-            
-            ResultCollector collector = new ConsoleResultCollector(verbose,listen);
+            String messageIDHeader = SendMessageTask.MESSAGE_ID_HEADER;
             
-            String messageIDHeader = "X-BENCHMARK-MESSAGE-ID";
-            AtomicInteger connectionIDGenerator = new AtomicInteger(0);
-            AtomicInteger messageIDGenerator = new AtomicInteger(0);
+            long totalmessages = 0;
+            for (TrafficClass trafficClass : classes)
+            {
+                MimeMessage message = trafficClass.getMessage();
+                message.setHeader(SendMessageTask.RUN_ID_HEADER, runid);
+                
+                /* Evaluated once, every message of the class has the same body */
+                message.setHeader(SendMessageTask.BODY_CHECKSUM_HEADER, PayloadChecksum.of(message).toString());
+                totalmessages += trafficClass.getNummessages();
+            }
             
+            if (calibrate)
+            {
+                Calibration calibration = Calibration.calibrate(session, classes, messageIDHeader);
+                calibration.print();
+                collector.calibrated(calibration);
+            }
             
+            /* Soak mode matches round trips on the fly, forgetting them after the deadline */
+            CorrelationWindow window = null;
             if (listen)
             {
-                receiver = new MessageReceiver(collector, nummessages, listenhost, listenport, messageIDHeader);
+                /* With an impaired network the receiver hides behind the proxy, on any free loopback port */
+                String receiverhost = listenhost;
+                int receiverport = listenport;
+                NetworkProfile listenprofile = null;
+                if (!listenimpairment.isEmpty())
+                {
+                    listenprofile = NetworkProfile.parse(listenimpairment);
+                    receiverhost = InetAddress.getLoopbackAddress().getHostAddress();
+                    receiverport = 0;
+                }
+                
+                DeliveryTracker tracker = new DeliveryTracker(deadline_seconds, TimeUnit.SECONDS);
+                receiver = new MessageReceiver(collector, tracker, totalmessages, receiverhost, receiverport, messageIDHeader);
+                if (listentls)
+                    receiver.enableTLS();
+                if (soak)
+                {
+                    window = new CorrelationWindow(deadline_seconds, TimeUnit.SECONDS);
+                    receiver.useCorrelationWindow(window);
+                }
                 receiver.start();
+                
+                if (listenprofile != null)
+                {
+                    listenProxy = new ImpairmentProxy("listener", listenprofile,
+                            InetAddress.getByName(listenhost), listenport, receiverhost, receiver.getPort());
+                    listenProxy.start();
+                }
             }
             
-            MimeMessage message = buildMessage(session, subject, from, to, messagesize, messagefile);
-
-            collector.start();
+            String targethost = host;
+            int targetport = port;
+            if (!impairment.isEmpty())
+            {
+                senderProxy = new ImpairmentProxy("sender", NetworkProfile.parse(impairment),
+                        InetAddress.getLoopbackAddress(), 0, host, port);
+                senderProxy.start();
+                
+                targethost = senderProxy.getHost();
+                targetport = senderProxy.getPort();
+            }
             
-            ExecutorService service = Executors.newFixedThreadPool(numthreads);
+            ClientMonitor monitor = new ClientMonitor(MessageReceiver.THREAD_NAME_PREFIX);
+            monitor.start();
             
-            final List<Future<SendMessageTask.Result>> messageIDSendTimesFutures = new ArrayList<>(numthreads);
+            /* A warm run starts the clock once every connection is ready */
+            WarmPool warmPool = null;
+            if (warmup) {
+                int connections = 0;
+                for (TrafficClass trafficClass : classes)
+                    connections += trafficClass.getNumthreads();
+                
+                final ResultCollector overall = collector;
+                final ResultCollector started = lifecycle;
+                warmPool = new WarmPool(connections, report -> {
+                    overall.connectionsWarmed(report);
+                    started.start();
+                });
+            } else {
+                lifecycle.start();
+            }
             
             /* Just for timeout, expressed in seconds we don't need fine grained data */
             long start = System.currentTimeMillis();
             
-            int remaining = nummessages; 
-            while( remaining > 0 )
-            {
-                int messageCount = Math.min(remaining, nummessagesperconnection);
-                remaining -= messageCount;
-                
-                messageIDSendTimesFutures.add(
-                        service.submit(
-                                new SendMessageTask(
-                                        collector,
-                                        host,
-                                        port,
-                                        username,
-                                        password,
-                                        session,
-                                        message,
-                                        messageCount,
-                                        connectionIDGenerator,
-                                        messageIDGenerator,
-                                        messageIDHeader) ) );
-            }
-            
-            service.shutdown();
-            if (hasTimeout)
-            {
-                boolean finished = service.awaitTermination(timeout_millis, TimeUnit.MILLISECONDS);
-                if (!finished)
-                    throw new Exception("Test not finished in time");
-            } else
-            {
-                service.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS);                
+            final LongAdder senderCpuTime = new LongAdder();
+            final LongAdder senderAllocatedBytes = new LongAdder();
+            
+            /* Send times to be matched at the end, always empty in soak mode */
+            final Map<TrafficClass,List<SendMessageTask.Result>> results = new LinkedHashMap<>();
+            for (TrafficClass trafficClass : classes)
+                results.put(trafficClass, Collections.synchronizedList(new ArrayList<>()));
+            
+            final boolean retain = receive && !soak;
+            final BiConsumer<TrafficClass,SendMessageTask.Result> accumulator = (trafficClass, result) -> {
+                senderCpuTime.add(result.getCpuTime());
+                senderAllocatedBytes.add(result.getAllocatedBytes());
+                if (retain)
+                    results.get(trafficClass).add(result);
+            };
+            
+            TraceReplay replay = null;
+            if (trace.isEmpty()) {
+                sendMessages(collectors, session, targethost, targetport, messageIDHeader,
+                        listen ? receiver.getTracker() : null, window, warmPool, accumulator, timeout_millis);
+            } else {
+                replay = new TraceReplay(new File(trace), tracespeedup, tracepasses);
+                replay.replay(collectors, session, targethost, targetport, messageIDHeader,
+                        listen ? receiver.getTracker() : null, window, accumulator, timeout_millis);
             }
             
             if (hasTimeout)
@@ -249,7 +508,7 @@ public class SMTPSampler {
                 timeout_millis = Math.max(0, timeout_millis - (now - start));
             }
             
-            collector.finishSend();
+            lifecycle.finishSend();
             
             
             if( listen )
@@ -257,28 +516,64 @@ public class SMTPSampler {
                 if (hasTimeout)
                 {
                     boolean finished = receiver.awaitTermination(timeout_millis, TimeUnit.MILLISECONDS);
+                    
+                    /* Still report: pending and missing messages are what the tracker is for */
                     if (!finished)
-                        throw new Exception("Test not finished in time");
+                        System.err.println("Test not finished in time, reporting messages received so far");
                 } else
                 {
                     receiver.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS);                
                 }
                 
-                collector.finishReceive();
+                lifecycle.finishReceive();
+                
+                for (Map.Entry<TrafficClass,List<SendMessageTask.Result>> entry : results.entrySet())
+                {
+                    final Map<Long,Long> messageIDBeforeSendTimes = new HashMap<Long,Long>();
+                    final Map<Long,Long> messageIDAfterSendTimes = new HashMap<Long,Long>();
+                    mergeSendTimes(entry.getValue(), messageIDBeforeSendTimes, messageIDAfterSendTimes);
+                    
+                    receiver.flushResults(collectors.get(entry.getKey()), messageIDBeforeSendTimes, messageIDAfterSendTimes);
+                }
+                
+                if (window != null)
+                    System.out.println("Correlation window: " + window.getExpired() + " unmatched entries aged out, " + window.size() + " left");
                 
-                final Map<Integer,Long> messageIDBeforeSendTimes = new HashMap<Integer,Long>();
-                final Map<Integer,Long> messageIDAfterSendTimes = new HashMap<Integer,Long>();
-                for( Future<SendMessageTask.Result> future : messageIDSendTimesFutures )
+                collector.deliveryTracked(TimeUnit.SECONDS.toNanos(deadline_seconds), receiver.trackingReport());
+                collector.payloadVerified(receiver.integrityReport());
+            
+            } else if (!sinkresults.isEmpty())
+            {
+                long wait = TimeUnit.SECONDS.toMillis(deadline_seconds);
+                if (hasTimeout)
+                    wait = Math.min(wait, timeout_millis);
+                
+                final List<SinkResults.Sent> sent = new ArrayList<>();
+                for (Map.Entry<TrafficClass,List<SendMessageTask.Result>> entry : results.entrySet())
                 {
-                    future.get().getMessageIDBeforeSendTimes().entrySet().stream().forEach(entry -> messageIDBeforeSendTimes.put(entry.getKey(), entry.getValue()));
-                    future.get().getMessageIDAfterSendTimes() .entrySet().stream().forEach(entry -> messageIDAfterSendTimes.put(entry.getKey(), entry.getValue()));
+                    final Map<Long,Long> messageIDBeforeSendTimes = new HashMap<Long,Long>();
+                    final Map<Long,Long> messageIDAfterSendTimes = new HashMap<Long,Long>();
+                    mergeSendTimes(entry.getValue(), messageIDBeforeSendTimes, messageIDAfterSendTimes);
+                    
+                    sent.add(new SinkResults.Sent(messageIDBeforeSendTimes, messageIDAfterSendTimes, collectors.get(entry.getKey())));
                 }
                 
-                receiver.flushResults(messageIDBeforeSendTimes,messageIDAfterSendTimes);
+                SinkResults.merge(new File(sinkresults), runid, sent, wait);
+                
+                lifecycle.finishReceive();
             }
             
+            collector.clientResources(monitor.stop(senderCpuTime.longValue(), senderAllocatedBytes.longValue()));
+            
+            if (senderProxy != null)
+                collector.networkImpaired(senderProxy.report());
+            if (listenProxy != null)
+                collector.networkImpaired(listenProxy.report());
+            
+            lifecycle.finished();
             
-            collector.finished();
+            if (replay != null)
+                replay.print();
             
         } catch (Exception ex)
         {
@@ -286,13 +581,184 @@ public class SMTPSampler {
             
         } finally
         {
-            if ( listen )
+            if ( senderProxy != null )
+                senderProxy.stop();
+            if ( listenProxy != null )
+                listenProxy.stop();
+            if ( listen && receiver != null )
                 receiver.stop();
         }
 
     }
 
-    private static MimeMessage buildMessage(Session session, String subject, String from, String to, int messagesize, File messagefile) throws MessagingException, IOException {
+    static void mergeSendTimes(
+            Collection<SendMessageTask.Result> results,
+            Map<Long,Long> messageIDBeforeSendTimes,
+            Map<Long,Long> messageIDAfterSendTimes) {
+        
+        for( SendMessageTask.Result result : results )
+        {
+            messageIDBeforeSendTimes.putAll(result.getMessageIDBeforeSendTimes());
+            messageIDAfterSendTimes.putAll(result.getMessageIDAfterSendTimes());
+        }
+    }
+
+    /**
+     * Blocks the producer while the queue of a sender pool is full
+     */
+    static final RejectedExecutionHandler BLOCK_PRODUCER = (task, executor) -> {
+        if (executor.isShutdown())
+            throw new RejectedExecutionException("Sender pool shut down");
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+    };
+
+    /**
+     * Sends every traffic class concurrently, each one on its own thread pool.
+     * <p>
+     * Connection tasks are generated lazily by a producer for every class
+     * through a queue bounded by the class thread number, so memory does not
+     * depend on the number of messages. Every task result is handed to the
+     * given consumer as soon as its connection is closed.
+     * </p>
+     * <p>
+     * With a warm pool the first connection of every class thread is
+     * established ahead and held at the pool barrier, see {@link WarmPool}.
+     * </p>
+     * <p>
+     * Interrupting the calling thread aborts the run: the sender pools are
+     * shut down and every connection stops after its current message.
+     * </p>
+     */
+    static void sendMessages(
+            Map<TrafficClass,ResultCollector> collectors,
+            Session session,
+            String host,
+            int port,
+            String messageIDHeader,
+            DeliveryTracker tracker,
+            CorrelationWindow window,
+            WarmPool warmPool,
+            BiConsumer<TrafficClass,SendMessageTask.Result> results,
+            long timeout_millis) throws Exception {
+        
+        AtomicLong connectionIDGenerator = new AtomicLong(0);
+        AtomicLong messageIDGenerator = new AtomicLong(0);
+        
+        final List<ExecutorService> services = new ArrayList<>();
+        final ExecutorService producers = Executors.newFixedThreadPool(collectors.size());
+        
+        long end = System.currentTimeMillis() + timeout_millis;
+        
+        for (Map.Entry<TrafficClass,ResultCollector> entry : collectors.entrySet())
+        {
+            final TrafficClass trafficClass = entry.getKey();
+            final ResultCollector collector = entry.getValue();
+            
+            final ThreadPoolExecutor service = new ThreadPoolExecutor(
+                    trafficClass.getNumthreads(), trafficClass.getNumthreads(), 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(trafficClass.getNumthreads()), BLOCK_PRODUCER);
+            services.add(service);
+            
+            producers.execute(() -> {
+                try {
+                    long remaining = trafficClass.getNummessages();
+                    int warm = warmPool == null ? 0 : trafficClass.getNumthreads();
+                    while( remaining > 0 )
+                    {
+                        int messageCount = (int) Math.min(remaining, trafficClass.getNummessagesperconnection());
+                        remaining -= messageCount;
+                        
+                        final SendMessageTask task = new SendMessageTask(
+                                collector,
+                                host,
+                                port,
+                                trafficClass.getCredentials(),
+                                session,
+                                trafficClass.getMessage(),
+                                messageCount,
+                                connectionIDGenerator,
+                                messageIDGenerator,
+                                messageIDHeader,
+                                tracker,
+                                window,
+                                trafficClass.getRateLimiter(),
+                                trafficClass.getEnvelope());
+                        
+                        /* There are at least as many connections as threads */
+                        if (warm > 0) {
+                            task.warmUp(warmPool);
+                            warm--;
+                        }
+                        
+                        service.execute(() -> {
+                            try {
+                                results.accept(trafficClass, task.call());
+                            } catch (Exception error) {
+                                /* Connection errors are reported by the task itself */
+                                throw new IllegalStateException(error);
+                            }
+                        });
+                    }
+                } catch (RejectedExecutionException stopped) {
+                    /* Run aborted */
+                } finally {
+                    service.shutdown();
+                }
+            });
+        }
+        
+        producers.shutdown();
+        
+        try
+        {
+            for (ExecutorService service : services)
+            {
+                if (timeout_millis > 0)
+                {
+                    boolean finished = service.awaitTermination(Math.max(0, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    if (!finished)
+                    {
+                        producers.shutdownNow();
+                        services.forEach(ExecutorService::shutdownNow);
+                        throw new Exception("Test not finished in time");
+                    }
+                } else
+                {
+                    service.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS);
+                }
+            }
+        } catch (InterruptedException aborted)
+        {
+            /* Senders stop after their current message */
+            producers.shutdownNow();
+            services.forEach(ExecutorService::shutdownNow);
+            throw aborted;
+        }
+    }
+
+    static Properties sessionProperties(boolean starttls, boolean javamaildebug) {
+        Properties props = new Properties();
+        props.putAll(System.getProperties());
+        props.put("mail.smtp.socketFactory", NoDelaySocketFactory.INSTANCE);
+        if (starttls)
+        {
+            props.put("mail.smtp.starttls.enable", "true");
+            props.put("mail.smtp.ssl.trust", "*");
+            props.put("mail.smtp.starttls.required", "true");
+        }
+        if (javamaildebug)
+        {
+            props.put("mail.debug", "true");
+        }
+        return props;
+    }
+
+    static MimeMessage buildMessage(Session session, String subject, String from, String to, int messagesize, int recipients, File messagefile) throws MessagingException, IOException {
         if (messagefile != null) {
             byte[] content = Files.readAllBytes(messagefile.getAbsoluteFile().toPath());
             return new MimeMessage(session, new ByteArrayInputStream(content));
@@ -300,7 +766,7 @@ public class SMTPSampler {
             MimeMessage msg = new MimeMessage(session);
             msg.setSubject(subject);
             msg.setFrom(from);
-            msg.setRecipient(Message.RecipientType.TO, new InternetAddress(to));
+            msg.setRecipients(Message.RecipientType.TO, buildRecipients(to, recipients));
             StringBuilder content = new StringBuilder();
             for (int i = 0; i < messagesize; i++) {
                 content.append("x");
@@ -311,4 +777,24 @@ public class SMTPSampler {
         }
     }
     
+    /**
+     * Derives distinct addresses from the given one: to@domain, to+1@domain,
+     * to+2@domain...
+     */
+    private static InternetAddress[] buildRecipients(String to, int recipients) throws AddressException {
+        InternetAddress address = new InternetAddress(to);
+        
+        String email = address.getAddress();
+        int at = email.lastIndexOf('@');
+        String local = at < 0 ? email : email.substring(0, at);
+        String domain = at < 0 ? "" : email.substring(at);
+        
+        InternetAddress[] addresses = new InternetAddress[Math.max(1, recipients)];
+        addresses[0] = address;
+        for (int i = 1; i < addresses.length; i++) {
+            addresses[i] = new InternetAddress(local + "+" + i + domain);
+        }
+        return addresses;
+    }
+    
 }
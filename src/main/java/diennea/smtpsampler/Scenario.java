@@ -0,0 +1,108 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.mail.Session;
+
+/**
+ * Loads a workload scenario: several traffic classes running concurrently.
+ * <p>
+ * A scenario is a properties file. The {@value #CLASSES} key lists class
+ * names, every class setting is keyed as {@code <class>.<long option name>}
+ * and defaults to the command line value. Example:
+ * </p>
+ * <pre>
+ * classes=transactional,newsletter
+ * transactional.nummessages=10000
+ * transactional.numthreads=20
+ * transactional.rate=200
+ * newsletter.nummessages=500
+ * newsletter.file=newsletter.eml
+ * newsletter.recipients=50
+ * </pre>
+ */
+public final class Scenario
+{
+    public static final String CLASSES = "classes";
+
+    private Scenario()
+    {
+    }
+
+    /**
+     * @param replayed true for the classes of a trace replay, see
+     *                 {@link TrafficClass#create}
+     */
+    public static List<TrafficClass> load(File file, Session session, Properties defaults, boolean replayed) throws Exception
+    {
+        List<TrafficClass> result = new ArrayList<>();
+        Map<String,AddressFile> addressFiles = new HashMap<>();
+        for (Map.Entry<String,Properties> entry : settings(file, defaults).entrySet())
+            result.add(TrafficClass.create(entry.getKey(), session, entry.getValue()::getProperty, addressFiles, replayed));
+
+        return result;
+    }
+
+    /**
+     * @return settings of every traffic class by name, scenario values
+     *         overriding given defaults
+     */
+    public static Map<String,Properties> settings(File file, Properties defaults) throws Exception
+    {
+        final Properties scenario = new Properties();
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+        {
+            scenario.load(reader);
+        } catch (IOException e)
+        {
+            throw new Exception("Cannot read scenario " + file + ": " + e, e);
+        }
+
+        String classes = scenario.getProperty(CLASSES, "").trim();
+        if (classes.isEmpty())
+            throw new Exception("No traffic class defined in scenario " + file);
+
+        Map<String,Properties> result = new LinkedHashMap<>();
+        for (String name : classes.split(","))
+        {
+            final String prefix = name.trim() + ".";
+
+            Properties settings = new Properties();
+            for (String key : defaults.stringPropertyNames())
+                settings.setProperty(key, scenario.getProperty(prefix + key, defaults.getProperty(key)));
+
+            result.put(name.trim(), settings);
+        }
+
+        return result;
+    }
+}
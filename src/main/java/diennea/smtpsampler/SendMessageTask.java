@@ -23,7 +23,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.MessagingException;
 import javax.mail.Session;
@@ -42,64 +42,110 @@ import diennea.smtpsampler.SendMessageTask.Result;
  */
 public class SendMessageTask implements Callable<Result>
 {
+    public static final String MESSAGE_ID_HEADER = "X-BENCHMARK-MESSAGE-ID";
+    
+    /** Identifies the run, set once on the template message */
+    public static final String RUN_ID_HEADER = "X-BENCHMARK-RUN-ID";
+    
+    /** Send time in epoch nanoseconds, see {@link EpochClock} */
+    public static final String SEND_TIME_HEADER = "X-BENCHMARK-SEND-TIME";
+    
+    /** Body checksum of the template message, see {@link PayloadChecksum} */
+    public static final String BODY_CHECKSUM_HEADER = "X-BENCHMARK-BODY-CHECKSUM";
+    
     public static final class Result
     {
-        private final Map<Integer,Long> messageIDBeforeSendTimes;
-        private final Map<Integer,Long> messageIDAfterSendTimes;
+        private final Map<Long,Long> messageIDBeforeSendTimes;
+        private final Map<Long,Long> messageIDAfterSendTimes;
+        
+        private long cpuTime;
+        private long allocatedBytes;
         
-        private Result( int size )
+        Result( int size )
         {
             messageIDBeforeSendTimes = new HashMap<>(size);
             messageIDAfterSendTimes = new HashMap<>(size);
         }
 
-        public Map<Integer, Long> getMessageIDBeforeSendTimes()
+        public Map<Long, Long> getMessageIDBeforeSendTimes()
         {
             return messageIDBeforeSendTimes;
         }
 
-        public Map<Integer, Long> getMessageIDAfterSendTimes()
+        public Map<Long, Long> getMessageIDAfterSendTimes()
         {
             return messageIDAfterSendTimes;
         }
+
+        /**
+         * @return CPU time spent by the sending thread, in nanoseconds
+         */
+        public long getCpuTime()
+        {
+            return cpuTime;
+        }
+
+        /**
+         * @return bytes allocated by the sending thread
+         */
+        public long getAllocatedBytes()
+        {
+            return allocatedBytes;
+        }
     }
     
     private final ResultCollector collector;
     
     private final String host;
     private final int port;
-    private final String username;
-    private final String password;
+    private final CredentialPool credentials;
     
     private final Session session;
     private final MimeMessage message;
     
     private final int messageCount;
     
-    private final int connectionID;
-    private final AtomicInteger messageIDGenerator;
+    private final long connectionID;
+    private final AtomicLong messageIDGenerator;
     private final String messageIDHeader;
     
+    private final DeliveryTracker tracker;
+    private final CorrelationWindow window;
+    private final RateLimiter rateLimiter;
+    
+    private final EnvelopeGenerator envelope;
+    private final int recipients;
+    
+    private WarmPool warmPool;
+    
+    /** Time spent waiting for the warm pool, not accounted as connection time */
+    private long barrierWait;
+    
+    /** Time the last prepared message was saved, the start of its send time */
+    private long prepared;
+    
     public SendMessageTask(
             ResultCollector collector,
             String host,
             int port,
-            String username,
-            String password,
+            CredentialPool credentials,
             Session session,
             MimeMessage message,
             int messageCount,
-            AtomicInteger connectionIDGenerator,
-            AtomicInteger messageIDGenerator,
-            String messageIDHeader)
+            AtomicLong connectionIDGenerator,
+            AtomicLong messageIDGenerator,
+            String messageIDHeader,
+            DeliveryTracker tracker,
+            CorrelationWindow window,
+            RateLimiter rateLimiter,
+            EnvelopeGenerator envelope)
     {
         super();
         
         this.collector = collector;
         this.host = host;
         this.port = port;
-        this.username = username;
-        this.password = password;
+        this.credentials = credentials;
         this.session = session;
         
         try
@@ -107,6 +153,9 @@ public class SendMessageTask implements Callable<Result>
             /* We need a copy because its headers will be modified */
             this.message = new MimeMessage(message);
             
+            /* Template recipients are replaced one by one */
+            this.recipients = envelope == null ? 0 : this.message.getAllRecipients().length;
+            
         } catch (MessagingException e)
         {
             /* Should never occur */
@@ -117,9 +166,21 @@ public class SendMessageTask implements Callable<Result>
         this.connectionID = connectionIDGenerator.getAndIncrement();
         this.messageIDGenerator = messageIDGenerator;
         this.messageIDHeader = messageIDHeader;
+        this.tracker = tracker;
+        this.window = window;
+        this.rateLimiter = rateLimiter;
+        this.envelope = envelope;
     }
     
     
+    /**
+     * Connects ahead of sending, waiting for the whole pool before the first message
+     */
+    public void warmUp(WarmPool pool)
+    {
+        this.warmPool = pool;
+    }
+    
     @Override
     public Result call() throws Exception
     {
@@ -127,8 +188,12 @@ public class SendMessageTask implements Callable<Result>
         
         long mtime = 0;
         long stime = 0;
+        long wtime = 0;
         long cstart = System.nanoTime();
         
+        long cpuStart = ThreadUsage.cpuTime();
+        long allocatedStart = ThreadUsage.allocatedBytes();
+        
         try
         {
             
@@ -136,30 +201,35 @@ public class SendMessageTask implements Callable<Result>
             
             try
             {
-                transport.connect(host, port, username, password);
+                if (warmPool != null)
+                    connectWarm(transport);
+                else
+                    connect(transport);
                 
                 for (int i = 0; i < messageCount; i++)
                 {
                     
-                    long mstart = -1, mend = -1;
+                    /* Run aborted, the sender pool is shutting down */
+                    if (Thread.currentThread().isInterrupted())
+                        break;
                     
-                    mstart = System.nanoTime();
+                    /* Wait out of measured times */
+                    if (rateLimiter != null)
+                    {
+                        long wstart = System.nanoTime();
+                        rateLimiter.acquire();
+                        wtime += System.nanoTime() - wstart;
+                    }
                     
-                    /*
-                     * Generate a message id and add it to the message, it will
-                     * be needed to recognize received messages.
-                     */
-                    int messageID = messageIDGenerator.getAndIncrement();
+                    long mstart = System.nanoTime();
                     
-                    message.setHeader(messageIDHeader, Integer.toString(messageID));
-                    message.saveChanges();
+                    long messageID = prepareMessage();
                     
-                    mend = System.nanoTime();
+                    long before = prepared;
+                    long after;
                     
-                    mtime += mend - mstart;
+                    mtime += before - mstart;
                     
-                    long before = mend;
-                    long after;
                     try
                     {
                         transport.sendMessage(message, message.getAllRecipients());
@@ -181,12 +251,18 @@ public class SendMessageTask implements Callable<Result>
                         
                     } catch (Exception err)
                     {
-                        after = transport.time;
+                        /* Rejected before data transmission: the hook time belongs to a previous message */
+                        after = transport.time >= before ? transport.time : System.nanoTime();
                         
                         long cstime = after - before;
                         stime += cstime;
                         
                         collector.messageSent(connectionID, i, cstime, transport.getLastServerResponse(), err);
+                        
+                        if (tracker != null)
+                            tracker.cancel(messageID);
+                        if (window != null)
+                            window.cancel(messageID);
                         break;
                     }
                     
@@ -194,8 +270,14 @@ public class SendMessageTask implements Callable<Result>
                      * Adds message id start time after message send to not
                      * account map time into message send time
                      */
-                    result.messageIDBeforeSendTimes.put(messageID, before);
-                    result.messageIDAfterSendTimes.put(messageID, after);
+                    if (window != null)
+                    {
+                        window.acknowledged(messageID, after);
+                    } else
+                    {
+                        result.messageIDBeforeSendTimes.put(messageID, before);
+                        result.messageIDAfterSendTimes.put(messageID, after);
+                    }
                 }
                 
             } finally
@@ -205,18 +287,121 @@ public class SendMessageTask implements Callable<Result>
             
             long cend = System.nanoTime();
             
-            collector.connectionHandled(connectionID, cend - cstart - mtime - stime, null);
+            collector.connectionHandled(connectionID, cend - cstart - mtime - stime - wtime - barrierWait, null);
             
         } catch (Throwable error)
         {
             long cend = System.nanoTime();
             
-            collector.connectionHandled(connectionID, cend - cstart - mtime - stime, error);
+            collector.connectionHandled(connectionID, cend - cstart - mtime - stime - wtime - barrierWait, error);
         }
         
+        result.cpuTime = ThreadUsage.cpuTime() - cpuStart;
+        result.allocatedBytes = ThreadUsage.allocatedBytes() - allocatedStart;
+        
         return result;
     }
     
+    /**
+     * Per message work before hitting the wire: stamps the next message id,
+     * the envelope and the send time on the message, then registers it for
+     * round trip matching
+     *
+     * @return the message id
+     */
+    long prepareMessage() throws MessagingException
+    {
+        /*
+         * Generate a message id and add it to the message, it will
+         * be needed to recognize received messages.
+         */
+        long messageID = messageIDGenerator.getAndIncrement();
+        
+        message.setHeader(messageIDHeader, Long.toString(messageID));
+        
+        /* Headers only, the body is untouched */
+        if (envelope != null)
+            envelope.apply(message, recipients);
+        
+        message.saveChanges();
+        
+        prepared = System.nanoTime();
+        
+        /*
+         * Already saved: the header is written as is without
+         * updating the whole message again
+         */
+        message.setHeader(SEND_TIME_HEADER, Long.toString(EpochClock.toEpochNanos(prepared)));
+        
+        /*
+         * Register before sending, the message could be received
+         * before this thread gets back the server response
+         */
+        if (tracker != null)
+            tracker.register(messageID);
+        
+        if (window != null)
+            window.sent(messageID, prepared, collector);
+        
+        return messageID;
+    }
+    
+    /**
+     * Connects (and starts TLS) then authenticates on its own, to time AUTH
+     */
+    private void connect(CustomSMTPTransport transport) throws MessagingException
+    {
+        transport.connect(host, port, null, null);
+        
+        if (credentials == null)
+            return;
+        
+        CredentialPool.Credential credential = credentials.next();
+        
+        long start = System.nanoTime();
+        SMTPAuth.Mechanism mechanism = null;
+        try
+        {
+            mechanism = SMTPAuth.negotiate(transport, credentials.getMechanism());
+            SMTPAuth.authenticate(transport, mechanism, credential.getUsername(), credential.getSecret());
+            
+        } catch (MessagingException error)
+        {
+            collector.authenticated(connectionID, mechanism == null ? null : mechanism.getName(), System.nanoTime() - start, error);
+            throw error;
+        }
+        
+        collector.authenticated(connectionID, mechanism.getName(), System.nanoTime() - start, null);
+    }
+    
+    private void connectWarm(CustomSMTPTransport transport) throws Exception
+    {
+        long start = System.nanoTime();
+        
+        Exception failure = null;
+        try
+        {
+            connect(transport);
+        } catch (Exception error)
+        {
+            failure = error;
+        }
+        
+        long connected = System.nanoTime();
+        
+        /* Failed connections wait too, the pool would never be complete */
+        try
+        {
+            warmPool.arrive(connected - start, failure);
+        } finally
+        {
+            barrierWait = System.nanoTime() - connected;
+        }
+        
+        if (failure != null)
+            throw failure;
+    }
+    
     private final class CustomSMTPTransport extends SMTPTransport
     {
         long time;
@@ -0,0 +1,183 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the records streamed by a {@link DeliverySink} into the results of
+ * the sending run, matching them by run ID and message ID.
+ */
+public final class SinkResults
+{
+    private SinkResults()
+    {
+    }
+
+    /**
+     * Send times of the messages of a traffic class, whose round trips go to
+     * the class collector
+     */
+    public static final class Sent
+    {
+        private final Map<Long,Long> messageIDBeforeSendTimes;
+        private final Map<Long,Long> messageIDAfterSendTimes;
+        private final ResultCollector collector;
+
+        public Sent(Map<Long,Long> messageIDBeforeSendTimes, Map<Long,Long> messageIDAfterSendTimes, ResultCollector collector)
+        {
+            this.messageIDBeforeSendTimes = messageIDBeforeSendTimes;
+            this.messageIDAfterSendTimes = messageIDAfterSendTimes;
+            this.collector = collector;
+        }
+    }
+
+    /**
+     * Follows the sink results file until every sent message of the run has
+     * a record or the timeout expires. The file is read once for every
+     * traffic class, message IDs being unique in a run. Records are reported
+     * to the collectors at the end, once the clock offset estimated by the
+     * sink, if any, is final.
+     *
+     * @return number of merged records
+     */
+    public static long merge(File file, String runID, List<Sent> classes, long timeout_millis)
+            throws IOException, InterruptedException
+    {
+        final Set<Long> pending = new HashSet<>();
+        for (Sent sent : classes)
+            pending.addAll(sent.messageIDBeforeSendTimes.keySet());
+
+        final Records records = new Records();
+        final long end = System.currentTimeMillis() + timeout_millis;
+
+        /* Lines are split on bytes, a newline is never part of a multibyte character */
+        byte[] bytes = new byte[64 * 1024];
+        int partial = 0;
+
+        long position = 0;
+
+        while (!pending.isEmpty())
+        {
+            if (file.exists())
+            {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+                {
+                    channel.position(position);
+
+                    int read;
+                    while ((read = channel.read(ByteBuffer.wrap(bytes, partial, bytes.length - partial))) > 0)
+                    {
+                        position += read;
+
+                        /* Only complete lines, the sink could be writing the last one */
+                        int filled = partial + read;
+                        int line = 0;
+                        for (int i = partial; i < filled; i++)
+                        {
+                            if (bytes[i] == '\n')
+                            {
+                                readRecord(new String(bytes, line, i - line, StandardCharsets.UTF_8), runID, pending, records);
+                                line = i + 1;
+                            }
+                        }
+
+                        partial = filled - line;
+                        System.arraycopy(bytes, line, bytes, 0, partial);
+                        if (partial == bytes.length)
+                            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                    }
+                }
+            }
+
+            if (pending.isEmpty() || System.currentTimeMillis() >= end)
+                break;
+
+            TimeUnit.SECONDS.sleep(1);
+        }
+
+        /* Assume the fastest message of the run travelled in no time */
+        long offset = records.estimated ? records.minDelay : 0;
+
+        for (Sent sent : classes)
+        {
+            for (Map.Entry<Long,Long> message : sent.messageIDBeforeSendTimes.entrySet())
+            {
+                Long latency = records.latencies.get(message.getKey());
+                if (latency == null)
+                    continue;
+
+                long before = message.getValue();
+                Long after = sent.messageIDAfterSendTimes.get(message.getKey());
+
+                /* Bring the sink latency back in this JVM nanoTime domain */
+                sent.collector.messageReceived(before + latency - offset, before, after);
+            }
+        }
+
+        return records.latencies.size();
+    }
+
+    private static void readRecord(String line, String runID, Set<Long> pending, Records records)
+    {
+        String[] fields = line.split(",");
+        if (fields.length != 6 || !fields[0].equals(runID))
+            return;
+
+        try
+        {
+            long latency = Long.parseLong(fields[5]);
+
+            /* Empty offset: raw delay, the offset is estimated on the whole run */
+            if (fields[4].isEmpty())
+            {
+                records.estimated = true;
+                records.minDelay = Math.min(records.minDelay, latency);
+            }
+
+            Long messageID = Long.valueOf(fields[1]);
+            if (pending.remove(messageID))
+                records.latencies.put(messageID, latency);
+
+        } catch (NumberFormatException e)
+        {
+            /* Not a record */
+        }
+    }
+
+    private static final class Records
+    {
+        final Map<Long,Long> latencies = new HashMap<>();
+        boolean estimated;
+        long minDelay = Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads CPU time and allocated bytes of the current thread, when supported by
+ * the running JVM
+ */
+public final class ThreadUsage
+{
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private ThreadUsage()
+    {
+    }
+
+    /**
+     * @return CPU time of the current thread in nanoseconds, 0 if unsupported
+     */
+    public static long cpuTime()
+    {
+        if (!THREADS.isCurrentThreadCpuTimeSupported())
+            return 0;
+
+        return THREADS.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * @return bytes allocated by the current thread, 0 if unsupported
+     */
+    public static long allocatedBytes()
+    {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean))
+            return 0;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+            return 0;
+
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Replays a trace of recorded traffic, sending every message at its recorded
+ * time.
+ * <p>
+ * A trace is a CSV file, read lazily, with a message on every line:
+ * </p>
+ * <pre>
+ * # timestamp (ms), size (bytes), recipients, traffic class, optional .eml file
+ * 1476353100000,2048,1,transactional
+ * 1476353100015,52000,20,newsletter,newsletter.eml
+ * </pre>
+ * <p>
+ * Only the differences between timestamps matter. Unknown classes fall back
+ * to the first one, which provides credentials, addresses and the number of
+ * threads; .eml files are relative to the trace. Every message is sent on
+ * its own connection by a {@link SendMessageTask}. The lag between
+ * scheduled and actual send start tells whether the replay kept up.
+ * </p>
+ * <p>
+ * Generated messages share templates: sizes are rounded up to a quarter of
+ * their power of two (at most 25% more bytes). .eml messages are sent as
+ * they are, whatever their recorded size.
+ * </p>
+ * <p>
+ * With a timeout, scheduling stops at the deadline and the messages already
+ * scheduled are completed before the replay ends.
+ * </p>
+ */
+public class TraceReplay
+{
+    /** Messages waiting for a free thread, for every class */
+    private static final int QUEUE_SIZE = 1024;
+
+    /** Bytes of message templates retained, least recently used are dropped first */
+    private static final long MAX_TEMPLATE_BYTES = 64 * 1024 * 1024;
+
+    /** Lag considered as falling behind the trace */
+    private static final long BEHIND_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final File trace;
+    private final double speedup;
+    private final int passes;
+
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private final LongAdder behind = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    private long records;
+    private int completedPasses;
+    private long traceNanos;
+    private boolean deadlineReached;
+
+    private final Map<String,Template> templates = new LinkedHashMap<>(16, 0.75f, true);
+    private long templateBytes;
+
+    /**
+     * @param speedup replay speed factor, 2 replays twice as fast
+     * @param passes times the trace is replayed, 0 for endless replay
+     */
+    public TraceReplay(File trace, double speedup, int passes)
+    {
+        if (!(speedup > 0))
+            throw new IllegalArgumentException("Speed-up must be positive, got " + speedup);
+
+        this.trace = trace;
+        this.speedup = speedup;
+        this.passes = passes;
+    }
+
+    private static final class Record
+    {
+        final long timestamp;
+        final int size;
+        final int recipients;
+        final String trafficClass;
+        final String file;
+
+        Record(long timestamp, int size, int recipients, String trafficClass, String file)
+        {
+            this.timestamp = timestamp;
+            this.size = size;
+            this.recipients = recipients;
+            this.trafficClass = trafficClass;
+            this.file = file;
+        }
+    }
+
+    private static final class Template
+    {
+        final MimeMessage message;
+        final long bytes;
+
+        Template(MimeMessage message, long bytes)
+        {
+            this.message = message;
+            this.bytes = bytes;
+        }
+    }
+
+    static Record parse(String line, int number) throws Exception
+    {
+        String[] fields = line.split(",");
+        if (fields.length < 4)
+            throw new Exception("Bad trace line " + number + ", expected timestamp,size,recipients,class[,file]: " + line);
+
+        try
+        {
+            return new Record(
+                    Long.parseLong(fields[0].trim()),
+                    Integer.parseInt(fields[1].trim()),
+                    Integer.parseInt(fields[2].trim()),
+                    fields[3].trim(),
+                    fields.length > 4 && !fields[4].trim().isEmpty() ? fields[4].trim() : null);
+
+        } catch (NumberFormatException e)
+        {
+            throw new Exception("Bad trace line " + number + ": " + line);
+        }
+    }
+
+    /**
+     * Replays the trace, each class on its own thread pool
+     */
+    public void replay(
+            Map<TrafficClass,ResultCollector> collectors,
+            Session session,
+            String host,
+            int port,
+            String messageIDHeader,
+            DeliveryTracker tracker,
+            CorrelationWindow window,
+            BiConsumer<TrafficClass,SendMessageTask.Result> results,
+            long timeout_millis) throws Exception
+    {
+        AtomicLong connectionIDGenerator = new AtomicLong(0);
+        AtomicLong messageIDGenerator = new AtomicLong(0);
+
+        final Map<String,TrafficClass> classes = new LinkedHashMap<>();
+        final Map<TrafficClass,ExecutorService> services = new LinkedHashMap<>();
+        for (TrafficClass trafficClass : collectors.keySet())
+        {
+            classes.put(trafficClass.getName(), trafficClass);
+            services.put(trafficClass, new ThreadPoolExecutor(
+                    trafficClass.getNumthreads(), trafficClass.getNumthreads(), 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(QUEUE_SIZE), SMTPSampler.BLOCK_PRODUCER));
+        }
+        final TrafficClass fallback = classes.values().iterator().next();
+
+        final long start = System.nanoTime();
+        final long end = timeout_millis > 0 ? start + TimeUnit.MILLISECONDS.toNanos(timeout_millis) : Long.MAX_VALUE;
+
+        /* Every pass starts where the previous one ended */
+        long offset = 0;
+
+        try
+        {
+            for (int pass = 0; !deadlineReached && (passes == 0 || pass < passes); pass++)
+            {
+                long first = -1;
+                long last = 0;
+
+                try (BufferedReader reader = Files.newBufferedReader(trace.toPath(), StandardCharsets.UTF_8))
+                {
+                    String line;
+                    int number = 0;
+                    while ((line = reader.readLine()) != null)
+                    {
+                        number++;
+                        line = line.trim();
+                        if (line.isEmpty() || line.startsWith("#"))
+                            continue;
+
+                        Record record = parse(line, number);
+                        if (first < 0)
+                            first = record.timestamp;
+                        long elapsed = record.timestamp - first;
+
+                        final long scheduled = start + offset + (long) (TimeUnit.MILLISECONDS.toNanos(elapsed) / speedup);
+                        if (scheduled - end > 0)
+                        {
+                            deadlineReached = true;
+                            break;
+                        }
+                        last = elapsed;
+
+                        TrafficClass trafficClass = classes.getOrDefault(record.trafficClass, fallback);
+                        MimeMessage template = template(session, trafficClass, record);
+
+                        final SendMessageTask task = new SendMessageTask(
+                                collectors.get(trafficClass),
+                                host,
+                                port,
+                                trafficClass.getCredentials(),
+                                session,
+                                template,
+                                1,
+                                connectionIDGenerator,
+                                messageIDGenerator,
+                                messageIDHeader,
+                                tracker,
+                                window,
+                                null,
+                                trafficClass.getEnvelope());
+
+                        sleepUntil(scheduled);
+
+                        services.get(trafficClass).execute(() ->
+                        {
+                            long delay = System.nanoTime() - scheduled;
+                            lag.record(delay);
+                            if (delay > BEHIND_NANOS)
+                                behind.increment();
+
+                            try
+                            {
+                                results.accept(trafficClass, task.call());
+                            } catch (Exception error)
+                            {
+                                /* Connection errors are reported by the task itself */
+                                failed.increment();
+                                System.err.println("Trace replay message failed: " + error);
+                            }
+                        });
+
+                        records++;
+                    }
+                }
+
+                if (first < 0)
+                    throw new Exception("No record in trace " + trace);
+
+                offset += (long) (TimeUnit.MILLISECONDS.toNanos(last) / speedup);
+                traceNanos += TimeUnit.MILLISECONDS.toNanos(last);
+                if (!deadlineReached)
+                    completedPasses++;
+            }
+
+        } catch (RejectedExecutionException stopped)
+        {
+            /* Run aborted */
+
+        } finally
+        {
+            services.values().forEach(ExecutorService::shutdown);
+        }
+
+        /* Messages scheduled before the deadline belong to the run */
+        for (ExecutorService service : services.values())
+            service.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    /**
+     * @return a shared template for messages of given class, size bucket and
+     *         recipients, or of given .eml file, with its body checksum
+     */
+    private MimeMessage template(Session session, TrafficClass trafficClass, Record record) throws Exception
+    {
+        File file = null;
+        String key;
+        int size = 0;
+        if (record.file != null)
+        {
+            file = new File(record.file);
+            if (!file.isAbsolute())
+                file = new File(trace.getAbsoluteFile().getParentFile(), record.file);
+            key = file.getPath();
+        } else
+        {
+            size = sizeBucket(record.size);
+            key = trafficClass.getName() + "/" + size + "/" + record.recipients;
+        }
+
+        Template template = templates.get(key);
+        if (template == null)
+        {
+            MimeMessage base = trafficClass.getMessage();
+
+            MimeMessage message = SMTPSampler.buildMessage(session, base.getSubject(),
+                    base.getFrom()[0].toString(), base.getRecipients(Message.RecipientType.TO)[0].toString(),
+                    size, record.recipients, file);
+
+            message.setHeader(SendMessageTask.RUN_ID_HEADER, base.getHeader(SendMessageTask.RUN_ID_HEADER, null));
+            message.setHeader(SendMessageTask.BODY_CHECKSUM_HEADER, PayloadChecksum.of(message).toString());
+
+            template = new Template(message, file == null ? size : file.length());
+            templates.put(key, template);
+            templateBytes += template.bytes;
+
+            /* The template just added is kept anyway */
+            Iterator<Template> eldest = templates.values().iterator();
+            while (templateBytes > MAX_TEMPLATE_BYTES && templates.size() > 1)
+            {
+                templateBytes -= eldest.next().bytes;
+                eldest.remove();
+            }
+        }
+        return template.message;
+    }
+
+    /**
+     * @return given message size rounded up to a quarter of its power of two
+     */
+    static int sizeBucket(int size)
+    {
+        int step = Math.max(1, Integer.highestOneBit(size) / 4);
+        return (int) Math.min(Integer.MAX_VALUE, ((long) size + step - 1) / step * step);
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException
+    {
+        long wait;
+        while ((wait = nanoTime - System.nanoTime()) > 0)
+        {
+            LockSupport.parkNanos(wait);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+    }
+
+    public void print()
+    {
+        final DecimalFormat format = new DecimalFormat("0.000");
+
+        System.out.println("\nTrace replay (" + trace.getName() + "):");
+        System.out.println("  Records:               " + records + " in " + completedPasses + " passes"
+                + (deadlineReached ? ", stopped at the timeout" : ""));
+        System.out.println("  Trace duration:        " + format.format(traceNanos / 1_000_000_000d) + " s, replayed at x" + format.format(speedup));
+        System.out.println("  Send lag p50:          " + format.format(lag.percentile(50) / 1_000_000d) + " ms");
+        System.out.println("  Send lag p99:          " + format.format(lag.percentile(99) / 1_000_000d) + " ms");
+        System.out.println("  Send lag max:          " + format.format(lag.getMax() / 1_000_000d) + " ms");
+        System.out.println("  Behind schedule:       " + behind + " messages over " + TimeUnit.NANOSECONDS.toMillis(BEHIND_NANOS) + " ms late");
+        if (failed.longValue() > 0)
+            System.out.println("  Failed tasks:          " + failed);
+
+        if (records > 0 && behind.doubleValue() / records > 0.01)
+            System.out.println("  WARNING: replay did not keep up with the trace, add threads or lower the speed-up");
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Locale;
+import java.util.function.Function;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A homogeneous stream of messages: same message source, credentials and
+ * concurrency. A run can mix several traffic classes.
+ */
+public final class TrafficClass
+{
+    private final String name;
+
+    private final CredentialPool credentials;
+
+    private final MimeMessage message;
+
+    private final long nummessages;
+    private final int nummessagesperconnection;
+    private final int numthreads;
+    private final double rate;
+
+    private final RateLimiter rateLimiter;
+
+    private final EnvelopeGenerator envelope;
+
+    private final boolean replayed;
+
+    /**
+     * @param credentials credentials of the class connections, null for no authentication
+     */
+    public TrafficClass(String name, CredentialPool credentials, MimeMessage message,
+            long nummessages, int nummessagesperconnection, int numthreads, double rate) throws Exception
+    {
+        this(name, credentials, message, nummessages, nummessagesperconnection, numthreads, rate, null);
+    }
+
+    public TrafficClass(String name, CredentialPool credentials, MimeMessage message,
+            long nummessages, int nummessagesperconnection, int numthreads, double rate,
+            EnvelopeGenerator envelope) throws Exception
+    {
+        this(name, credentials, message, nummessages, nummessagesperconnection, numthreads, rate, envelope, false);
+    }
+
+    /**
+     * @param replayed true if a trace drives the messages of the class, see
+     *                 {@link TraceReplay}: message counts are then ignored
+     */
+    private TrafficClass(String name, CredentialPool credentials, MimeMessage message,
+            long nummessages, int nummessagesperconnection, int numthreads, double rate,
+            EnvelopeGenerator envelope, boolean replayed) throws Exception
+    {
+        if ( !replayed && nummessages < numthreads )
+            throw new Exception("Number of messages must be greater or equal to thread number (" + name + ")");
+
+        this.name = name;
+        this.credentials = credentials;
+        this.message = message;
+        this.replayed = replayed;
+
+        if (replayed)
+        {
+            /* One message per connection, as many as the trace has */
+            this.nummessages = 0;
+            this.nummessagesperconnection = 1;
+        } else
+        {
+            this.nummessages = nummessages;
+
+            /* Correct num messages per connection if nummessages is too low (to force all thread use) */
+            this.nummessagesperconnection = (int) Math.min( nummessages / numthreads, nummessagesperconnection );
+        }
+
+        this.numthreads = numthreads;
+        this.rate = rate;
+        this.rateLimiter = rate > 0 ? new RateLimiter(rate) : null;
+        this.envelope = envelope;
+    }
+
+    /**
+     * Builds a traffic class looking up settings by long option name
+     *
+     * @param addressFiles address files mapped by the run, shared among its classes
+     * @param replayed      true for classes of a trace replay, which ignore
+     *                      the number of messages settings
+     */
+    public static TrafficClass create(String name, Session session, Function<String,String> options,
+            Map<String,AddressFile> addressFiles, boolean replayed) throws Exception
+    {
+        String file = options.apply("file");
+        File messagefile = file == null || file.isEmpty() ? null : new File(file);
+
+        MimeMessage message = SMTPSampler.buildMessage(
+                session,
+                options.apply("subject"),
+                options.apply("from"),
+                options.apply("to"),
+                Integer.parseInt(options.apply("messagesize")),
+                Integer.parseInt(options.apply("recipients")),
+                messagefile);
+
+        return new TrafficClass(
+                name,
+                credentials(name, options),
+                message,
+                Long.parseLong(options.apply("nummessages")),
+                Integer.parseInt(options.apply("nummessagesperconnection")),
+                Integer.parseInt(options.apply("numthreads")),
+                Double.parseDouble(options.apply("rate")),
+                envelope(name, options, addressFiles),
+                replayed);
+    }
+
+    /**
+     * @return the credentials of the class connections, null without authentication
+     */
+    private static CredentialPool credentials(String name, Function<String,String> options) throws Exception
+    {
+        String authmechanism = options.apply("authmechanism");
+        SMTPAuth.Mechanism mechanism = authmechanism == null || authmechanism.isEmpty() ? null : SMTPAuth.Mechanism.parse(authmechanism);
+        CredentialPool.Selection selection = CredentialPool.parseSelection(options.apply("credentialselection"));
+
+        /* A credential file implies authentication */
+        String credentialsfile = options.apply("credentialsfile");
+        if (credentialsfile != null && !credentialsfile.isEmpty())
+            return CredentialPool.load(new File(credentialsfile), selection, mechanism);
+
+        if (!Boolean.parseBoolean(options.apply("auth")))
+            return null;
+
+        String username = options.apply("username");
+        if (username == null || username.trim().isEmpty())
+            throw new Exception("Username is required with -auth flag (" + name + ")");
+
+        return new CredentialPool(
+                Collections.singletonList(new CredentialPool.Credential(username, options.apply("password"))),
+                selection, mechanism);
+    }
+
+    /**
+     * @return the generator of per message senders and recipients, null if
+     *         no address population file is configured
+     */
+    private static EnvelopeGenerator envelope(String name, Function<String,String> options,
+            Map<String,AddressFile> addressFiles) throws Exception
+    {
+        String sendersfile = options.apply("sendersfile");
+        String recipientsfile = options.apply("recipientsfile");
+
+        boolean senders = sendersfile != null && !sendersfile.isEmpty();
+        boolean recipients = recipientsfile != null && !recipientsfile.isEmpty();
+        if (!senders && !recipients)
+            return null;
+
+        AddressSelector.Selection selection;
+        try
+        {
+            selection = AddressSelector.Selection.valueOf(options.apply("addressselection").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e)
+        {
+            throw new Exception("Unknown address selection '" + options.apply("addressselection")
+                    + "', expected uniform, zipfian or sequential (" + name + ")");
+        }
+
+        double exponent = Double.parseDouble(options.apply("zipfexponent"));
+        String domainweights = options.apply("domainweights");
+
+        return new EnvelopeGenerator(
+                senders ? new AddressSelector(AddressFile.open(new File(sendersfile), addressFiles), selection, exponent, null) : null,
+                recipients ? new AddressSelector(AddressFile.open(new File(recipientsfile), addressFiles), selection, exponent, domainweights) : null);
+    }
+
+    /**
+     * @return a copy of this class sending given number of messages as fast
+     *         as possible
+     */
+    public TrafficClass unlimited(long messages) throws Exception
+    {
+        /* Without credentials too, the null sink does not offer AUTH */
+        return new TrafficClass(name, null, message, messages, nummessagesperconnection, numthreads, 0, envelope);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return credentials of the class connections, null without authentication
+     */
+    public CredentialPool getCredentials()
+    {
+        return credentials;
+    }
+
+    public MimeMessage getMessage()
+    {
+        return message;
+    }
+
+    /**
+     * @return true if a trace drives the messages of the class, which has
+     *         then no number of messages
+     */
+    public boolean isReplayed()
+    {
+        return replayed;
+    }
+
+    public long getNummessages()
+    {
+        return nummessages;
+    }
+
+    public int getNummessagesperconnection()
+    {
+        return nummessagesperconnection;
+    }
+
+    public int getNumthreads()
+    {
+        return numthreads;
+    }
+
+    /**
+     * @return target messages per second, 0 means unlimited
+     */
+    public double getRate()
+    {
+        return rate;
+    }
+
+    /**
+     * @return shared rate limiter or null if unlimited
+     */
+    public RateLimiter getRateLimiter()
+    {
+        return rateLimiter;
+    }
+
+    /**
+     * @return per message senders and recipients or null to keep the template ones
+     */
+    public EnvelopeGenerator getEnvelope()
+    {
+        return envelope;
+    }
+}
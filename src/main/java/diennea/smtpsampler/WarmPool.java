@@ -0,0 +1,146 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Connections established and authenticated before the measured phase.
+ * <p>
+ * Every pooled connection waits at a barrier once its handshake is done,
+ * failed or not. When the last one arrives the run clock is started and
+ * all of them are released at once, so send throughput no longer includes
+ * the startup burst of TCP, TLS and AUTH handshakes, which is measured on
+ * its own.
+ * </p>
+ */
+public final class WarmPool
+{
+    private final int connections;
+    private final CyclicBarrier barrier;
+
+    private final LatencyHistogram handshakes = new LatencyHistogram();
+    private final LongAdder failed = new LongAdder();
+
+    private final long start;
+
+    /**
+     * @param connections connections held at the barrier
+     * @param ready invoked once all connections are established, before
+     *        releasing them
+     */
+    public WarmPool(int connections, Consumer<Report> ready)
+    {
+        this.connections = connections;
+        this.start = System.nanoTime();
+        this.barrier = new CyclicBarrier(connections, () -> ready.accept(report(System.nanoTime())));
+    }
+
+    public int getConnections()
+    {
+        return connections;
+    }
+
+    /**
+     * Records a connection handshake and waits for the whole pool
+     *
+     * @param time handshake time in nanoseconds
+     * @param error handshake error or null
+     */
+    public void arrive(long time, Throwable error) throws InterruptedException, BrokenBarrierException
+    {
+        if (error == null)
+            handshakes.record(time);
+        else
+            failed.increment();
+
+        barrier.await();
+    }
+
+    private Report report(long end)
+    {
+        return new Report(handshakes.getCount(), failed.longValue(), end - start,
+                handshakes.percentile(50), handshakes.percentile(99), handshakes.getMax());
+    }
+
+    public static final class Report
+    {
+        private final long established;
+        private final long failed;
+        private final long elapsed;
+        private final long median;
+        private final long p99;
+        private final long max;
+
+        private Report(long established, long failed, long elapsed, long median, long p99, long max)
+        {
+            this.established = established;
+            this.failed = failed;
+            this.elapsed = elapsed;
+            this.median = median;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getEstablished()
+        {
+            return established;
+        }
+
+        public long getFailed()
+        {
+            return failed;
+        }
+
+        /**
+         * @return time from the first connection attempt to the barrier, in nanoseconds
+         */
+        public long getElapsed()
+        {
+            return elapsed;
+        }
+
+        /**
+         * @return established connections per second, handshakes running concurrently
+         */
+        public double getHandshakesPerSecond()
+        {
+            return elapsed > 0 ? established * 1_000_000_000d / elapsed : 0;
+        }
+
+        public long getMedian()
+        {
+            return median;
+        }
+
+        public long getP99()
+        {
+            return p99;
+        }
+
+        public long getMax()
+        {
+            return max;
+        }
+    }
+}
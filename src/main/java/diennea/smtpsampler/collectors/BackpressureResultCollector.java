@@ -0,0 +1,301 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler.collectors;
+
+import java.text.DecimalFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import diennea.smtpsampler.LatencyHistogram;
+import diennea.smtpsampler.ResultCollector;
+import diennea.smtpsampler.SMTPReply;
+
+/**
+ * Accounts server replies by reply code and enhanced status code, over time.
+ * <p>
+ * Deferrals (4xx replies and dropped connections) are the way a server
+ * pushes back under load: the report shows when their rate first crossed a
+ * threshold, along with the load offered at that time and the send times
+ * before and after. The timeline shows the p99 send time of every reply in
+ * every bucket.
+ * </p>
+ * <p>
+ * Memory does not grow with the run length: buckets are folded into the
+ * report as soon as they close, only the first deferring ones are kept for
+ * the timeline.
+ * </p>
+ */
+public class BackpressureResultCollector implements ResultCollector
+{
+    /** Buckets with fewer events are too small to evaluate a rate */
+    private static final int MIN_BUCKET_EVENTS = 10;
+
+    /** Max deferring buckets printed in the timeline */
+    private static final int MAX_TIMELINE_ROWS = 20;
+
+    private static final class Bucket
+    {
+        final LongAdder messages = new LongAdder();
+        final LongAdder deferredMessages = new LongAdder();
+        final LongAdder failedConnections = new LongAdder();
+        final LongAdder deferredConnections = new LongAdder();
+        final LongAdder sendTime = new LongAdder();
+        final ConcurrentMap<String,Reply> replies = new ConcurrentHashMap<>();
+
+        long events()
+        {
+            return messages.longValue() + failedConnections.longValue();
+        }
+
+        long deferrals()
+        {
+            return deferredMessages.longValue() + deferredConnections.longValue();
+        }
+
+        double deferralRate()
+        {
+            long events = events();
+            return events == 0 ? 0 : (double) deferrals() / events;
+        }
+    }
+
+    private static final class Reply
+    {
+        final LongAdder messages = new LongAdder();
+        final LongAdder connections = new LongAdder();
+        final LatencyHistogram sendTimes = new LatencyHistogram();
+    }
+
+    private final long bucketNanos;
+    private final double threshold;
+
+    private final ConcurrentMap<String,Reply> replies = new ConcurrentHashMap<>();
+    /** Open buckets, the current one and the previous one still receiving late events */
+    private final ConcurrentMap<Long,Bucket> buckets = new ConcurrentHashMap<>();
+    private volatile long currentIndex = -1;
+
+    /* Closed buckets, guarded by this */
+    private final TreeMap<Long,Bucket> timeline = new TreeMap<>();
+    private long deferringBuckets;
+    private Long onset;
+    private Bucket onsetBucket;
+    private long messagesBefore;
+    private long sendTimeBefore;
+    private long messagesSince;
+    private long sendTimeSince;
+
+    private long testStart;
+
+    /**
+     * @param bucket width of the time buckets
+     * @param threshold deferral rate (0 to 1) to be flagged
+     */
+    public BackpressureResultCollector(long bucket, TimeUnit unit, double threshold)
+    {
+        this.bucketNanos = unit.toNanos(bucket);
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void start()
+    {
+        testStart = System.nanoTime();
+    }
+
+    private Bucket bucket()
+    {
+        long index = (System.nanoTime() - testStart) / bucketNanos;
+        if (index > currentIndex)
+            roll(index);
+        return buckets.computeIfAbsent(index, k -> new Bucket());
+    }
+
+    private synchronized void roll(long index)
+    {
+        if (index <= currentIndex)
+            return;
+        currentIndex = index;
+        close(index - 1);
+    }
+
+    /**
+     * Folds every open bucket before the given index into the report
+     */
+    private synchronized void close(long limit)
+    {
+        for (Long index : new TreeSet<>(buckets.keySet()).headSet(limit))
+        {
+            Bucket bucket = buckets.remove(index);
+
+            if (onset == null && bucket.events() >= MIN_BUCKET_EVENTS && bucket.deferralRate() >= threshold)
+            {
+                onset = index;
+                onsetBucket = bucket;
+            }
+
+            if (onset == null)
+            {
+                messagesBefore += bucket.messages.longValue();
+                sendTimeBefore += bucket.sendTime.longValue();
+            } else
+            {
+                messagesSince += bucket.messages.longValue();
+                sendTimeSince += bucket.sendTime.longValue();
+            }
+
+            if (bucket.deferrals() > 0 && deferringBuckets++ < MAX_TIMELINE_ROWS)
+                timeline.put(index, bucket);
+        }
+    }
+
+    @Override
+    public void messageSent(long connectionId, int messageNumber, long time, String lastServerResponse, Throwable error)
+    {
+        SMTPReply reply = SMTPReply.parse(lastServerResponse, error);
+
+        Reply stats = replies.computeIfAbsent(reply.getKey(), k -> new Reply());
+        stats.messages.increment();
+        stats.sendTimes.record(time);
+
+        Bucket bucket = bucket();
+        bucket.messages.increment();
+        bucket.sendTime.add(time);
+        Reply bucketStats = bucket.replies.computeIfAbsent(reply.getKey(), k -> new Reply());
+        bucketStats.messages.increment();
+        bucketStats.sendTimes.record(time);
+        if (reply.isDeferral())
+            bucket.deferredMessages.increment();
+    }
+
+    @Override
+    public void connectionHandled(long connectionId, long time, Throwable error)
+    {
+        if (error == null)
+            return;
+
+        SMTPReply reply = SMTPReply.parse(null, error);
+
+        replies.computeIfAbsent(reply.getKey(), k -> new Reply()).connections.increment();
+
+        Bucket bucket = bucket();
+        bucket.failedConnections.increment();
+        bucket.replies.computeIfAbsent(reply.getKey(), k -> new Reply()).connections.increment();
+        if (reply.isDeferral())
+            bucket.deferredConnections.increment();
+    }
+
+    @Override
+    public synchronized void finished()
+    {
+        if (replies.isEmpty())
+            return;
+
+        final DecimalFormat format = new DecimalFormat("0.000");
+        final double seconds = bucketNanos / (double) TimeUnit.SECONDS.toNanos(1);
+
+        System.out.println("\n  Server replies");
+        System.out.println("    Reply                Messages  Connections  p50 ms    p99 ms    max ms");
+        for (Map.Entry<String,Reply> entry : new TreeMap<>(replies).entrySet())
+        {
+            Reply reply = entry.getValue();
+            boolean sent = reply.messages.longValue() > 0;
+            System.out.println(String.format("    %-20s %8d  %11d  %-9s %-9s %s",
+                    entry.getKey(), reply.messages.longValue(), reply.connections.longValue(),
+                    sent ? millis(format, reply.sendTimes.percentile(50)) : "-",
+                    sent ? millis(format, reply.sendTimes.percentile(99)) : "-",
+                    sent ? millis(format, reply.sendTimes.getMax()) : "-"));
+        }
+
+        close(Long.MAX_VALUE);
+
+        if (deferringBuckets == 0)
+            return;
+
+        System.out.println("\n  Deferrals over time (" + format.format(seconds) + " s buckets)");
+        System.out.println("    At s       Offered msg/s  Deferred  Conn. failed  Mean send ms  Replies (p99 send ms)");
+        for (Map.Entry<Long,Bucket> entry : timeline.entrySet())
+        {
+            Bucket bucket = entry.getValue();
+            System.out.println(String.format("    %-10s %-14s %-9s %-13d %-13s %s",
+                    format.format(entry.getKey() * seconds),
+                    format.format(bucket.messages.longValue() / seconds),
+                    format.format(bucket.deferralRate() * 100) + " %",
+                    bucket.failedConnections.longValue(),
+                    bucket.messages.longValue() == 0 ? "-" : millis(format, bucket.sendTime.longValue() / bucket.messages.longValue()),
+                    replies(format, bucket.replies)));
+        }
+        if (deferringBuckets > MAX_TIMELINE_ROWS)
+            System.out.println("    ... " + (deferringBuckets - MAX_TIMELINE_ROWS) + " more buckets with deferrals");
+
+        if (onset == null)
+        {
+            System.out.println("    Deferral rate never reached " + format.format(threshold * 100) + " %");
+            return;
+        }
+
+        System.out.println("    WARNING: deferral rate crossed " + format.format(threshold * 100) + " % at " + format.format(onset * seconds) + " s: "
+            + format.format(onsetBucket.deferralRate() * 100) + " % deferred with an offered load of " + format.format(onsetBucket.messages.longValue() / seconds) + " msg/s");
+
+        System.out.println("    Mean send time:      " + meanSendTime(format, messagesBefore, sendTimeBefore) + " ms before, "
+            + meanSendTime(format, messagesSince, sendTimeSince) + " ms since");
+    }
+
+    /**
+     * @return count and p99 send time of every reply
+     */
+    private static String replies(DecimalFormat format, Map<String,Reply> replies)
+    {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String,Reply> entry : new TreeMap<>(replies).entrySet())
+        {
+            Reply reply = entry.getValue();
+            if (result.length() > 0)
+                result.append(", ");
+            result.append(entry.getKey()).append('=').append(reply.messages.longValue() + reply.connections.longValue());
+            if (reply.messages.longValue() > 0)
+                result.append(" (").append(millis(format, reply.sendTimes.percentile(99))).append(')');
+        }
+        return result.toString();
+    }
+
+    private static String meanSendTime(DecimalFormat format, long messages, long time)
+    {
+        return messages == 0 ? "-" : millis(format, time / messages);
+    }
+
+    private static String millis(DecimalFormat format, long nanos)
+    {
+        return format.format(nanos / 1_000_000d);
+    }
+
+    @Override
+    public void finishSend() {}
+
+    @Override
+    public void finishReceive() {}
+
+    @Override
+    public void messageReceived(long receive, long before, long after) {}
+}
@@ -0,0 +1,137 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler.collectors;
+
+import java.util.Arrays;
+import java.util.List;
+
+import diennea.smtpsampler.Calibration;
+import diennea.smtpsampler.ClientMonitor;
+import diennea.smtpsampler.DeliveryTracker;
+import diennea.smtpsampler.ImpairmentProxy;
+import diennea.smtpsampler.PayloadVerifier;
+import diennea.smtpsampler.ResultCollector;
+import diennea.smtpsampler.WarmPool;
+
+/**
+ * Forwards results to several collectors, in order
+ */
+public class CompositeResultCollector implements ResultCollector
+{
+    private final List<ResultCollector> collectors;
+
+    public CompositeResultCollector(ResultCollector... collectors)
+    {
+        this.collectors = Arrays.asList(collectors);
+    }
+
+    public CompositeResultCollector(List<ResultCollector> collectors)
+    {
+        this.collectors = collectors;
+    }
+
+    @Override
+    public void start()
+    {
+        collectors.forEach(ResultCollector::start);
+    }
+
+    @Override
+    public void finishSend()
+    {
+        collectors.forEach(ResultCollector::finishSend);
+    }
+
+    @Override
+    public void finishReceive()
+    {
+        collectors.forEach(ResultCollector::finishReceive);
+    }
+
+    @Override
+    public void finished()
+    {
+        collectors.forEach(ResultCollector::finished);
+    }
+
+    @Override
+    public void calibrated(Calibration calibration)
+    {
+        collectors.forEach(c -> c.calibrated(calibration));
+    }
+
+    @Override
+    public void messageSent(long connectionId, int messageNumber, long time, String lastServerResponse, Throwable error)
+    {
+        for (ResultCollector collector : collectors)
+            collector.messageSent(connectionId, messageNumber, time, lastServerResponse, error);
+    }
+
+    @Override
+    public void connectionHandled(long connectionId, long time, Throwable error)
+    {
+        for (ResultCollector collector : collectors)
+            collector.connectionHandled(connectionId, time, error);
+    }
+
+    @Override
+    public void authenticated(long connectionId, String mechanism, long time, Throwable error)
+    {
+        for (ResultCollector collector : collectors)
+            collector.authenticated(connectionId, mechanism, time, error);
+    }
+
+    @Override
+    public void messageReceived(long receivens, long beforesendns, long aftersendns)
+    {
+        for (ResultCollector collector : collectors)
+            collector.messageReceived(receivens, beforesendns, aftersendns);
+    }
+
+    @Override
+    public void clientResources(ClientMonitor.Report report)
+    {
+        collectors.forEach(c -> c.clientResources(report));
+    }
+
+    @Override
+    public void deliveryTracked(long deadlinens, DeliveryTracker.Report report)
+    {
+        collectors.forEach(c -> c.deliveryTracked(deadlinens, report));
+    }
+
+    @Override
+    public void payloadVerified(PayloadVerifier.Report report)
+    {
+        collectors.forEach(c -> c.payloadVerified(report));
+    }
+
+    @Override
+    public void networkImpaired(ImpairmentProxy.Report report)
+    {
+        collectors.forEach(c -> c.networkImpaired(report));
+    }
+
+    @Override
+    public void connectionsWarmed(WarmPool.Report report)
+    {
+        collectors.forEach(c -> c.connectionsWarmed(report));
+    }
+}
@@ -1,7 +1,12 @@
 package diennea.smtpsampler.collectors;
 
 import java.text.DecimalFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 
@@ -9,7 +14,14 @@ import org.apache.commons.math3.distribution.TDistribution;
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.commons.math3.stat.descriptive.SynchronizedSummaryStatistics;
 
+import diennea.smtpsampler.Calibration;
+import diennea.smtpsampler.ClientMonitor;
+import diennea.smtpsampler.DeliveryTracker;
+import diennea.smtpsampler.ImpairmentProxy;
+import diennea.smtpsampler.LatencyHistogram;
+import diennea.smtpsampler.PayloadVerifier;
 import diennea.smtpsampler.ResultCollector;
+import diennea.smtpsampler.WarmPool;
 
 /**
  * Collects and prints results
@@ -24,6 +36,7 @@ public class ConsoleResultCollector implements ResultCollector
         @Override protected DecimalFormat initialValue() { return new DecimalFormat("0.000"); }
     };
     
+    private final String name;
     private final boolean verbose;
     private final boolean receive;
 
@@ -46,8 +59,44 @@ public class ConsoleResultCollector implements ResultCollector
     private long receiveEnd;
     private long testEnd;
     
+    private Calibration calibration;
+    
+    /** Seconds of send time peaks retained to be matched with GC pauses */
+    private static final int TIMELINE_SECONDS = 3600;
+    
+    /** Max send time for every second of the last hour, ring indexed by second */
+    private final AtomicLongArray sendTimeline = new AtomicLongArray(TIMELINE_SECONDS);
+    
+    /** Second (plus one) owning every ring slot, 0 for none */
+    private final AtomicLongArray sendTimelineSeconds = new AtomicLongArray(TIMELINE_SECONDS);
+    
+    private ClientMonitor.Report clientResources;
+    
+    private long deadline;
+    private DeliveryTracker.Report deliveryReport;
+    
+    private PayloadVerifier.Report integrityReport;
+    
+    private final List<ImpairmentProxy.Report> impairments = new CopyOnWriteArrayList<>();
+    
+    private WarmPool.Report warmPool;
+    
+    /** AUTH times of every attempt, failed ones included */
+    private final LatencyHistogram authTime = new LatencyHistogram();
+    private final LongAdder failedAuthCount = new LongAdder();
+    private final Set<String> authMechanisms = ConcurrentHashMap.newKeySet();
+    
     public ConsoleResultCollector(boolean verbose, boolean receive)
     {
+        this(null, verbose, receive);
+    }
+    
+    /**
+     * @param name name shown in the report header, null for none
+     */
+    public ConsoleResultCollector(String name, boolean verbose, boolean receive)
+    {
+        this.name = name;
         this.verbose = verbose;
         this.receive = receive;
     }
@@ -67,6 +116,12 @@ public class ConsoleResultCollector implements ResultCollector
         testStart = System.nanoTime();
     }
 
+    @Override
+    public void calibrated(Calibration calibration)
+    {
+        this.calibration = calibration;
+    }
+
     @Override
     public void finishSend()
     {
@@ -117,6 +172,45 @@ public class ConsoleResultCollector implements ResultCollector
         return format.format( (events * multiplier) /  time );
     }
     
+    private static String formatRanges(List<long[]> ranges, boolean truncated)
+    {
+        final int max = 20;
+        
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < ranges.size() && i < max; i++)
+        {
+            long[] range = ranges.get(i);
+            
+            if (i > 0)
+                builder.append(", ");
+            
+            builder.append(range[0]);
+            if (range[1] != range[0])
+                builder.append('-').append(range[1]);
+        }
+        
+        if (truncated || ranges.size() > max)
+            builder.append(", ...");
+        
+        return builder.toString();
+    }
+    
+    private static String formatIDs(List<Long> ids, long total)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (Long id : ids)
+        {
+            if (builder.length() > 0)
+                builder.append(", ");
+            builder.append(id);
+        }
+        
+        if (total > ids.size())
+            builder.append(", ...");
+        
+        return builder.toString();
+    }
+    
     @Override
     public void finished()
     {
@@ -128,7 +222,7 @@ public class ConsoleResultCollector implements ResultCollector
         long totalSendTime    = sendEnd - testStart;
         long totalReceiveTime = receiveEnd - testStart;
         
-        System.out.println("Report:");
+        System.out.println(name == null ? "Report:" : "\nReport (" + name + "):");
         
         System.out.println("\n  Wall Clock:            " + format( format, totalTestTime, TimeUnit.NANOSECONDS, TimeUnit.SECONDS ) + " s");
         System.out.println("  Wall Send Time:        " + format( format, totalSendTime, TimeUnit.NANOSECONDS, TimeUnit.SECONDS ) + " s");
@@ -143,6 +237,40 @@ public class ConsoleResultCollector implements ResultCollector
             System.out.println("  Real Receive Time:     " + format( format, receiveTime.getSum(), TimeUnit.NANOSECONDS, TimeUnit.SECONDS ) + " s");
         }
         
+        for (ImpairmentProxy.Report impairment : impairments)
+        {
+            System.out.println("\n  Network impairment (" + impairment.getName() + ")");
+            System.out.println("    Profile:             " + impairment.getProfile());
+            System.out.println("    Connections:         " + impairment.getConnections());
+            System.out.println("    Relayed:             " + format.format(impairment.getUpstreamBytes() / 1024d) + " KB to server, "
+                + format.format(impairment.getDownstreamBytes() / 1024d) + " KB from server");
+            
+            if (impairment.getStalls() > 0)
+                System.out.println("    Stalls:              " + impairment.getStalls());
+        }
+        
+        if (warmPool != null)
+        {
+            System.out.println("\n  Warm connections (established before the clock started)");
+            System.out.println("    Established:         " + warmPool.getEstablished());
+            System.out.println("    Failed:              " + warmPool.getFailed());
+            System.out.println("    Pool ready in:       " + format( format, warmPool.getElapsed(), TimeUnit.NANOSECONDS, TimeUnit.SECONDS ) + " s");
+            System.out.println("    Handshake speed:     " + format.format( warmPool.getHandshakesPerSecond() ) + " handshakes/s");
+            System.out.println("    Handshake time:      " + format( format, warmPool.getMedian(), TimeUnit.NANOSECONDS, TimeUnit.MILLISECONDS ) + " ms median, "
+                + format( format, warmPool.getP99(), TimeUnit.NANOSECONDS, TimeUnit.MILLISECONDS ) + " ms p99, "
+                + format( format, warmPool.getMax(), TimeUnit.NANOSECONDS, TimeUnit.MILLISECONDS ) + " ms max");
+        }
+        
+        if (authTime.getCount() > 0)
+        {
+            System.out.println("\n  Authentication (" + String.join(", ", authMechanisms) + ")");
+            System.out.println("    Attempts:            " + authTime.getCount());
+            System.out.println("    Failed:              " + failedAuthCount);
+            System.out.println("    Median:              " + format( format, authTime.percentile(50), TimeUnit.NANOSECONDS, TimeUnit.MILLISECONDS ) + " ms");
+            System.out.println("    99th percentile:     " + format( format, authTime.percentile(99), TimeUnit.NANOSECONDS, TimeUnit.MILLISECONDS ) + " ms");
+            System.out.println("    Maximum:             " + format( format, authTime.getMax(), TimeUnit.NANOSECONDS, TimeUnit.MILLISECONDS ) + " ms");
+        }
+        
         System.out.println("\n  Failed connections:    " + failedConnectionsCount);
         System.out.println("  Total messages:        " + messageCount);
         System.out.println("  Delivered messages:    " + deliveredMessageCount);
@@ -151,6 +279,40 @@ public class ConsoleResultCollector implements ResultCollector
         if (receive)
             System.out.println("  Received messages:     " + receivedMessageCount);
         
+        if (deliveryReport != null)
+        {
+            System.out.println("\n  Delivery tracking (deadline " + format( format, deadline, TimeUnit.NANOSECONDS, TimeUnit.SECONDS ) + " s)");
+            System.out.println("    In time:             " + deliveryReport.getDelivered());
+            System.out.println("    Late:                " + deliveryReport.getLate());
+            System.out.println("    Lost:                " + deliveryReport.getLost());
+            
+            if (deliveryReport.getDuplicates() > 0)
+                System.out.println("    Duplicates:          " + deliveryReport.getDuplicates());
+            
+            if (deliveryReport.getPending() > 0)
+                System.out.println("    Pending:             " + deliveryReport.getPending());
+            
+            if (!deliveryReport.getMissingRanges().isEmpty())
+                System.out.println("    Missing IDs:         " + formatRanges(deliveryReport.getMissingRanges(), deliveryReport.isMissingTruncated()));
+        }
+        
+        if (integrityReport != null)
+        {
+            System.out.println("\n  Payload integrity");
+            System.out.println("    Verified:            " + integrityReport.getVerified());
+            System.out.println("    Corrupted:           " + integrityReport.getCorrupted());
+            System.out.println("    Truncated:           " + integrityReport.getTruncated());
+            
+            if (integrityReport.getUnverified() > 0)
+                System.out.println("    Without checksum:    " + integrityReport.getUnverified());
+            
+            if (!integrityReport.getCorruptedIDs().isEmpty())
+                System.out.println("    Corrupted IDs:       " + formatIDs(integrityReport.getCorruptedIDs(), integrityReport.getCorrupted()));
+            
+            if (!integrityReport.getTruncatedIDs().isEmpty())
+                System.out.println("    Truncated IDs:       " + formatIDs(integrityReport.getTruncatedIDs(), integrityReport.getTruncated()));
+        }
+        
         double significance = 0.05;
         
         if (connectionCount.intValue() > 0)
@@ -271,10 +433,58 @@ public class ConsoleResultCollector implements ResultCollector
         if (messageCount.intValue() > 0)
             System.out.println("\n  Total thoughtput:      " + formatEvent( format, messageCount.longValue(), totalTestTime, TimeUnit.NANOSECONDS, TimeUnit.SECONDS ) + " msg/s (on wall test time)");
         
+        if (clientResources != null && messageCount.intValue() > 0)
+        {
+            final double messages = messageCount.doubleValue();
+            
+            System.out.println("\n  Client resources");
+            System.out.println("    Sender CPU:          " + format( format, clientResources.getSenderCpuTime() / messages, TimeUnit.NANOSECONDS, TimeUnit.MICROSECONDS ) + " us/msg");
+            System.out.println("    Sender allocation:   " + format.format( clientResources.getSenderAllocatedBytes() / messages / 1024 ) + " KB/msg");
+            
+            if (receive)
+            {
+                System.out.println("    Receiver CPU:        " + format( format, clientResources.getReceiverCpuTime() / messages, TimeUnit.NANOSECONDS, TimeUnit.MICROSECONDS ) + " us/msg");
+                System.out.println("    Receiver allocation: " + format.format( clientResources.getReceiverAllocatedBytes() / messages / 1024 ) + " KB/msg");
+            }
+            
+            System.out.println("    GC pauses:           " + clientResources.getPauseCount() + ", " + format( format, clientResources.getPauseTime(), TimeUnit.NANOSECONDS, TimeUnit.MILLISECONDS )
+                + " ms (" + format.format( 100.0 * clientResources.getPauseTime() / totalTestTime ) + " % of wall clock)");
+            
+            for (ClientMonitor.Pause pause : clientResources.getLargestPauses())
+            {
+                /* Send time peak in the seconds overlapping the pause */
+                long first = TimeUnit.NANOSECONDS.toSeconds(Math.max(0, pause.getStart() - testStart));
+                long last = TimeUnit.NANOSECONDS.toSeconds(Math.max(0, pause.getStart() + pause.getDuration() - testStart));
+                long peak = 0;
+                for (long second = first; second <= last; second++)
+                {
+                    int slot = (int) (second % TIMELINE_SECONDS);
+                    if (sendTimelineSeconds.get(slot) == second + 1)
+                        peak = Math.max(peak, sendTimeline.get(slot));
+                }
+                
+                System.out.println("      at " + format( format, pause.getStart() - testStart, TimeUnit.NANOSECONDS, TimeUnit.SECONDS ) + " s: "
+                    + format( format, pause.getDuration(), TimeUnit.NANOSECONDS, TimeUnit.MILLISECONDS ) + " ms " + pause.getCollector()
+                    + ", max send time " + format( format, peak, TimeUnit.NANOSECONDS, TimeUnit.MILLISECONDS ) + " ms in the same seconds");
+            }
+        }
+        
+        if (calibration != null && deliveredMessageCount.intValue() > 0)
+        {
+            double speed = deliveredMessageCount.doubleValue() * TimeUnit.SECONDS.toNanos(1) / totalSendTime;
+            double usage = calibration.usage(speed);
+            
+            System.out.println("\n  Client ceiling:        " + format.format(calibration.getMessagesPerSecond()) + " msg/s (calibrated on null sink)");
+            System.out.println("  Ceiling usage:         " + format.format(usage * 100) + " % (on wall send time)");
+            
+            if (usage >= Calibration.SATURATION_THRESHOLD)
+                System.out.println("  WARNING: client saturated, results may be bounded by smtpsampler and not by the server");
+        }
+        
     }
     
     @Override
-    public void connectionHandled(int connectionId, long time, Throwable error)
+    public void connectionHandled(long connectionId, long time, Throwable error)
     {
         if ( error != null )
         {
@@ -293,10 +503,33 @@ public class ConsoleResultCollector implements ResultCollector
     }
     
     @Override
-    public void messageSent(int connectionId, int messageNumber, long time, String lastServerResponse, Throwable error)
+    public void authenticated(long connectionId, String mechanism, long time, Throwable error)
+    {
+        if ( error != null )
+        {
+            failedAuthCount.increment();
+            
+            write(() -> "Authentication failed: " + format(NUMBER_FORMAT.get(), time, TimeUnit.NANOSECONDS, TimeUnit.MILLISECONDS) + " ms error: " + error);
+        }
+        
+        if ( mechanism != null )
+            authMechanisms.add(mechanism);
+        
+        authTime.record(time);
+    }
+    
+    @Override
+    public void messageSent(long connectionId, int messageNumber, long time, String lastServerResponse, Throwable error)
     {
         sendTime.addValue(time);
         
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - testStart);
+        int slot = (int) (second % TIMELINE_SECONDS);
+        long owner = sendTimelineSeconds.get(slot);
+        if (owner != second + 1 && sendTimelineSeconds.compareAndSet(slot, owner, second + 1))
+            sendTimeline.set(slot, 0);
+        sendTimeline.accumulateAndGet(slot, time, Math::max);
+        
         messageCount.increment();
         
         final String trimmedResponse = lastServerResponse == null ? "" : lastServerResponse.trim();
@@ -312,6 +545,37 @@ public class ConsoleResultCollector implements ResultCollector
         }
     }
     
+    @Override
+    public void clientResources(ClientMonitor.Report report)
+    {
+        this.clientResources = report;
+    }
+    
+    @Override
+    public void deliveryTracked(long deadlinens, DeliveryTracker.Report report)
+    {
+        this.deadline = deadlinens;
+        this.deliveryReport = report;
+    }
+    
+    @Override
+    public void payloadVerified(PayloadVerifier.Report report)
+    {
+        this.integrityReport = report;
+    }
+    
+    @Override
+    public void networkImpaired(ImpairmentProxy.Report report)
+    {
+        impairments.add(report);
+    }
+    
+    @Override
+    public void connectionsWarmed(WarmPool.Report report)
+    {
+        warmPool = report;
+    }
+    
     @Override
     public void messageReceived(long receive, long before, long after)
     {
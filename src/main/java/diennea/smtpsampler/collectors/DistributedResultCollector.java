@@ -0,0 +1,210 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler.collectors;
+
+import java.text.DecimalFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import diennea.smtpsampler.LatencyHistogram;
+import diennea.smtpsampler.LoadAgent;
+import diennea.smtpsampler.ResultCollector;
+
+/**
+ * Merges the intervals streamed by {@link LoadAgent}s into a single report,
+ * with a breakdown by agent. Message events are not expected: agents
+ * account them in their own intervals.
+ */
+public class DistributedResultCollector implements ResultCollector
+{
+    private static final class Agent
+    {
+        double handshakesPerSecond;
+        long sent;
+        long failed;
+        long failedConnections;
+        final LatencyHistogram sendTimes = new LatencyHistogram();
+        Boolean completed;
+    }
+
+    private static final class Interval
+    {
+        long sent;
+        int agents;
+        final LatencyHistogram sendTimes = new LatencyHistogram();
+    }
+
+    private final long intervalNanos;
+    private final boolean verbose;
+
+    private final Map<String,Agent> agents = new LinkedHashMap<>();
+    private final Map<Long,Interval> intervals = new TreeMap<>();
+    private final LatencyHistogram sendTimes = new LatencyHistogram();
+
+    private long testStart;
+    private long sendEnd;
+
+    public DistributedResultCollector(long interval, TimeUnit unit, boolean verbose)
+    {
+        this.intervalNanos = unit.toNanos(interval);
+        this.verbose = verbose;
+    }
+
+    public synchronized void agentReady(String name, double handshakesPerSecond)
+    {
+        agents.computeIfAbsent(name, k -> new Agent()).handshakesPerSecond = handshakesPerSecond;
+    }
+
+    public synchronized void intervalReceived(String name, LoadAgent.Interval received)
+    {
+        Agent agent = agents.computeIfAbsent(name, k -> new Agent());
+        agent.sent += received.getSent();
+        agent.failed += received.getFailed();
+        agent.failedConnections += received.getFailedConnections();
+        agent.sendTimes.add(received.getSendTimes());
+
+        sendTimes.add(received.getSendTimes());
+
+        Interval interval = intervals.computeIfAbsent(received.getSequence(), k -> new Interval());
+        interval.sent += received.getSent();
+        interval.sendTimes.add(received.getSendTimes());
+
+        /* Print once every agent reported the interval */
+        if (++interval.agents == agents.size() && verbose)
+            System.out.println("Interval " + received.getSequence() + ": " + interval.sent + " messages, p99 "
+                + millis(new DecimalFormat("0.000"), interval.sendTimes.percentile(99)) + " ms");
+    }
+
+    /**
+     * @param completed false if the agent was lost before reporting its last interval
+     */
+    public synchronized void agentFinished(String name, boolean completed)
+    {
+        agents.computeIfAbsent(name, k -> new Agent()).completed = completed;
+    }
+
+    @Override
+    public void start()
+    {
+        testStart = System.nanoTime();
+    }
+
+    @Override
+    public void finishSend()
+    {
+        sendEnd = System.nanoTime();
+    }
+
+    @Override
+    public void finishReceive() {}
+
+    @Override
+    public synchronized void finished()
+    {
+        final DecimalFormat format = new DecimalFormat("0.000");
+        final double seconds = (sendEnd - testStart) / (double) TimeUnit.SECONDS.toNanos(1);
+
+        long sent = 0;
+        long failed = 0;
+        long failedConnections = 0;
+        int lost = 0;
+        for (Agent agent : agents.values())
+        {
+            sent += agent.sent;
+            failed += agent.failed;
+            failedConnections += agent.failedConnections;
+            if (!Boolean.TRUE.equals(agent.completed))
+                lost++;
+        }
+
+        System.out.println("Distributed report:");
+        System.out.println("  Agents:                " + agents.size() + " (" + lost + " lost)");
+        System.out.println("  Wall Send Time:        " + format.format(seconds) + " s");
+        System.out.println("  Failed connections:    " + failedConnections);
+        System.out.println("  Total messages:        " + sent);
+        System.out.println("  Delivered messages:    " + (sent - failed));
+        System.out.println("  Failed messages:       " + failed);
+
+        if (sendTimes.getCount() > 0)
+        {
+            System.out.println("\n  Message delivery time");
+            System.out.println("    Median:              " + millis(format, sendTimes.percentile(50)) + " ms");
+            System.out.println("    90th percentile:     " + millis(format, sendTimes.percentile(90)) + " ms");
+            System.out.println("    99th percentile:     " + millis(format, sendTimes.percentile(99)) + " ms");
+            System.out.println("    Maximum:             " + millis(format, sendTimes.getMax()) + " ms");
+        }
+
+        if (seconds > 0)
+        {
+            System.out.println("\n  Message delivery speed");
+            System.out.println("    Average:             " + format.format(sent / seconds) + " msg/s (on wall send time)");
+
+            /* The last interval is partial */
+            double min = Double.MAX_VALUE;
+            double max = 0;
+            int complete = 0;
+            for (Interval interval : intervals.values())
+            {
+                if (++complete == intervals.size())
+                    break;
+                double speed = interval.sent * (double) TimeUnit.SECONDS.toNanos(1) / intervalNanos;
+                min = Math.min(min, speed);
+                max = Math.max(max, speed);
+            }
+            if (complete > 1)
+                System.out.println("    Interval range:      " + format.format(min) + " - " + format.format(max) + " msg/s");
+        }
+
+        System.out.println("\n  Agents");
+        for (Map.Entry<String,Agent> entry : agents.entrySet())
+        {
+            Agent agent = entry.getValue();
+
+            StringBuilder line = new StringBuilder("    ")
+                .append(String.format("%-21s", entry.getKey())).append(agent.sent).append(" messages, ")
+                .append(agent.failed).append(" failed, ")
+                .append(seconds > 0 ? format.format(agent.sent / seconds) : "-").append(" msg/s, p99 ")
+                .append(millis(format, agent.sendTimes.percentile(99))).append(" ms");
+
+            if (agent.handshakesPerSecond > 0)
+                line.append(", ").append(format.format(agent.handshakesPerSecond)).append(" handshakes/s");
+            if (!Boolean.TRUE.equals(agent.completed))
+                line.append(", LOST");
+
+            System.out.println(line);
+        }
+    }
+
+    private static String millis(DecimalFormat format, long nanos)
+    {
+        return format.format(nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Override
+    public void messageSent(long connectionId, int messageNumber, long time, String lastServerResponse, Throwable error) {}
+
+    @Override
+    public void connectionHandled(long connectionId, long time, Throwable error) {}
+
+    @Override
+    public void messageReceived(long receivens, long beforesendns, long aftersendns) {}
+}
@@ -0,0 +1,178 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler.collectors;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import diennea.smtpsampler.ResultCollector;
+import diennea.smtpsampler.RunExport;
+import diennea.smtpsampler.WarmPool;
+
+/**
+ * Exports run results to a JSON file, see {@link RunExport}
+ */
+public class ExportResultCollector implements ResultCollector
+{
+    /** Max latency samples retained for every distribution */
+    private static final int RESERVOIR_SIZE = 10000;
+
+    private final File file;
+    private final String runId;
+
+    private final LongAdder messageCount = new LongAdder();
+    private final LongAdder failedMessageCount = new LongAdder();
+
+    /** Messages sent in every second of the run */
+    private final ConcurrentMap<Long,LongAdder> sentPerSecond = new ConcurrentHashMap<>();
+
+    private final Reservoir sendTimes = new Reservoir(RESERVOIR_SIZE);
+    private final Reservoir roundTripTimes = new Reservoir(RESERVOIR_SIZE);
+
+    private long testStart;
+    private long sendEnd;
+
+    private double handshakesPerSecond;
+
+    public ExportResultCollector(File file, String runId)
+    {
+        this.file = file;
+        this.runId = runId;
+    }
+
+    @Override
+    public void start()
+    {
+        testStart = System.nanoTime();
+    }
+
+    @Override
+    public void finishSend()
+    {
+        sendEnd = System.nanoTime();
+    }
+
+    @Override
+    public void finishReceive() {}
+
+    @Override
+    public void finished()
+    {
+        /* Last second is partial */
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(sendEnd - testStart);
+        double[] series = new double[(int) seconds];
+        for (int i = 0; i < series.length; i++)
+        {
+            LongAdder count = sentPerSecond.get((long) i);
+            series[i] = count == null ? 0 : count.doubleValue();
+        }
+
+        RunExport export = new RunExport();
+        export.setRunId(runId);
+        export.setMessages(messageCount.longValue());
+        export.setFailed(failedMessageCount.longValue());
+        export.setDelivered(messageCount.longValue() - failedMessageCount.longValue());
+        export.setWallSendSeconds((sendEnd - testStart) / (double) TimeUnit.SECONDS.toNanos(1));
+        export.setThroughputSeries(series);
+        export.setSendTimes(sendTimes.values());
+        export.setRoundTripTimes(roundTripTimes.values());
+        export.setHandshakesPerSecond(handshakesPerSecond);
+
+        try
+        {
+            export.write(file);
+            System.out.println("\nResults exported to " + file.getAbsolutePath());
+        } catch (IOException e)
+        {
+            System.err.println("Cannot export results to " + file + ": " + e);
+        }
+    }
+
+    @Override
+    public void messageSent(long connectionId, int messageNumber, long time, String lastServerResponse, Throwable error)
+    {
+        messageCount.increment();
+
+        if (error != null)
+        {
+            failedMessageCount.increment();
+            return;
+        }
+
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - testStart);
+        sentPerSecond.computeIfAbsent(second, k -> new LongAdder()).increment();
+
+        sendTimes.add(time / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Override
+    public void connectionHandled(long connectionId, long time, Throwable error) {}
+
+    @Override
+    public void messageReceived(long receivens, long beforesendns, long aftersendns)
+    {
+        roundTripTimes.add((receivens - beforesendns) / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Override
+    public void connectionsWarmed(WarmPool.Report report)
+    {
+        handshakesPerSecond = report.getHandshakesPerSecond();
+    }
+
+    /**
+     * Uniform sample of a stream of values (reservoir sampling)
+     */
+    private static final class Reservoir
+    {
+        private final double[] samples;
+        private long seen;
+
+        private Reservoir(int size)
+        {
+            this.samples = new double[size];
+        }
+
+        synchronized void add(double value)
+        {
+            if (seen < samples.length)
+            {
+                samples[(int) seen] = value;
+            } else
+            {
+                long slot = ThreadLocalRandom.current().nextLong(seen + 1);
+                if (slot < samples.length)
+                    samples[(int) slot] = value;
+            }
+            ++seen;
+        }
+
+        synchronized double[] values()
+        {
+            return Arrays.copyOf(samples, (int) Math.min(seen, samples.length));
+        }
+    }
+}
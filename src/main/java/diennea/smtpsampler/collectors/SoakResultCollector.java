@@ -0,0 +1,220 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler.collectors;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import diennea.smtpsampler.IntervalRecorder;
+import diennea.smtpsampler.LatencyHistogram;
+import diennea.smtpsampler.ResultCollector;
+
+/**
+ * Rolls send and round trip histograms over fixed intervals, appending every
+ * interval to a CSV checkpoint file. Memory does not depend on the length of
+ * the run and a crashed soak test keeps every completed interval.
+ */
+public class SoakResultCollector implements ResultCollector
+{
+    static final String HEADER = "timestamp,elapseds,messages,failed,connections,failedconnections,received,"
+            + "sendp50ms,sendp90ms,sendp99ms,sendp999ms,sendmaxms,"
+            + "rttp50ms,rttp90ms,rttp99ms,rttp999ms,rttmaxms,heapusedmb";
+
+    private static final class Interval
+    {
+        final LongAdder messages = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder connections = new LongAdder();
+        final LongAdder failedConnections = new LongAdder();
+
+        final LatencyHistogram sendTimes = new LatencyHistogram();
+        final LatencyHistogram roundTripTimes = new LatencyHistogram();
+    }
+
+    private final File file;
+    private final long intervalNanos;
+
+    private final IntervalRecorder<Interval> recorder = new IntervalRecorder<>(Interval::new);
+
+    private final ScheduledExecutorService scheduler;
+
+    private PrintWriter writer;
+    private long testStart;
+    private long checkpoints;
+
+    public SoakResultCollector(File file, long interval, TimeUnit unit)
+    {
+        this.file = file;
+        this.intervalNanos = unit.toNanos(interval);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread thread = new Thread(r, "soak-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void start()
+    {
+        testStart = System.nanoTime();
+
+        try
+        {
+            boolean header = !file.exists() || file.length() == 0;
+            writer = new PrintWriter(new FileWriter(file, true));
+            if (header)
+            {
+                writer.println(HEADER);
+                writer.flush();
+            }
+        } catch (IOException e)
+        {
+            System.err.println("Cannot write checkpoints to " + file + ": " + e);
+            return;
+        }
+
+        scheduler.scheduleAtFixedRate(this::checkpoint, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Closes the current interval and appends it to the checkpoint file
+     */
+    synchronized void checkpoint()
+    {
+        if (writer == null)
+            return;
+
+        Interval interval = recorder.swap();
+
+        Runtime runtime = Runtime.getRuntime();
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+
+        StringBuilder line = new StringBuilder();
+        line.append(System.currentTimeMillis())
+            .append(',').append(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - testStart))
+            .append(',').append(interval.messages.longValue())
+            .append(',').append(interval.failed.longValue())
+            .append(',').append(interval.connections.longValue())
+            .append(',').append(interval.failedConnections.longValue())
+            .append(',').append(interval.roundTripTimes.getCount());
+        appendPercentiles(line, interval.sendTimes);
+        appendPercentiles(line, interval.roundTripTimes);
+        line.append(',').append(heap / (1024 * 1024));
+
+        writer.println(line);
+        writer.flush();
+        if (writer.checkError())
+            System.err.println("Cannot write checkpoints to " + file);
+
+        checkpoints++;
+    }
+
+    private static void appendPercentiles(StringBuilder line, LatencyHistogram histogram)
+    {
+        for (double percentile : new double[] { 50, 90, 99, 99.9 })
+            line.append(',').append(toMillis(histogram.percentile(percentile)));
+        line.append(',').append(toMillis(histogram.getMax()));
+    }
+
+    private static String toMillis(long nanos)
+    {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000d);
+    }
+
+    @Override
+    public void finishSend() {}
+
+    @Override
+    public void finishReceive() {}
+
+    @Override
+    public void finished()
+    {
+        scheduler.shutdownNow();
+
+        /* Last interval is partial */
+        checkpoint();
+
+        synchronized (this)
+        {
+            if (writer != null)
+            {
+                writer.close();
+                writer = null;
+                System.out.println("\nSoak checkpoints: " + checkpoints + " intervals in " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    @Override
+    public void connectionHandled(long connectionId, long time, Throwable error)
+    {
+        long token = recorder.enter();
+        try
+        {
+            Interval interval = recorder.current();
+            interval.connections.increment();
+            if (error != null)
+                interval.failedConnections.increment();
+        } finally
+        {
+            recorder.exit(token);
+        }
+    }
+
+    @Override
+    public void messageSent(long connectionId, int messageNumber, long time, String lastServerResponse, Throwable error)
+    {
+        long token = recorder.enter();
+        try
+        {
+            Interval interval = recorder.current();
+            interval.messages.increment();
+            interval.sendTimes.record(time);
+            if (error != null)
+                interval.failed.increment();
+        } finally
+        {
+            recorder.exit(token);
+        }
+    }
+
+    @Override
+    public void messageReceived(long receive, long before, long after)
+    {
+        long token = recorder.enter();
+        try
+        {
+            recorder.current().roundTripTimes.record(receive - before);
+        } finally
+        {
+            recorder.exit(token);
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.apache.commons.math3.stat.descriptive.SynchronizedDescriptiveStatistics;
+
+/**
+ * End to end benchmark suite on loopback: a {@link MessageReceiver} receives
+ * what the sender delivers, over a matrix of threads, messages per
+ * connection, message sizes and TLS. Every point is run several times and
+ * its median values are written to a file and compared with a committed
+ * baseline, the suite fails if any of them regressed more than the tolerance.
+ * <p>
+ * Usage: {@code LoopbackSuite <baseline> <results> [tolerance] [update] [runs]}
+ * </p>
+ * <p>
+ * The baseline records the host it was taken on: regenerate it when the
+ * build machine changes.
+ * </p>
+ */
+public class LoopbackSuite
+{
+    private static final String HOST = "127.0.0.1";
+    private static final String HEADER = "name,throughput,send_p50_ms,send_p99_ms,rtt_p50_ms,rtt_p99_ms";
+
+    private static final int[] THREADS = { 1, 8 };
+    private static final int[] MESSAGES_PER_CONNECTION = { 1, 50 };
+    private static final int[] MESSAGE_SIZES = { 100, 10000 };
+    private static final boolean[] TLS = { false, true };
+
+    private static final int MESSAGES = 800;
+
+    /** Latency differences below this are timer noise on loopback */
+    private static final double LATENCY_SLACK_MS = 0.25;
+
+    public static void main(String... args) throws Exception
+    {
+        File baseline = new File(args[0]);
+        File results = new File(args[1]);
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.15;
+        boolean update = args.length > 3 && Boolean.parseBoolean(args[3]);
+        int runs = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+        setupKeyStore();
+
+        /* Warm up JIT and connection paths, results are discarded */
+        run(8, 50, 1000, false);
+        run(8, 50, 1000, true);
+
+        Map<String,double[]> current = new LinkedHashMap<>();
+        for (boolean tls : TLS)
+            for (int size : MESSAGE_SIZES)
+                for (int tx : THREADS)
+                    for (int nc : MESSAGES_PER_CONNECTION)
+                    {
+                        String name = "tx" + tx + "-nc" + nc + "-ms" + size + (tls ? "-tls" : "");
+                        double[][] samples = new double[runs][];
+                        for (int i = 0; i < runs; i++)
+                            samples[i] = run(tx, nc, size, tls);
+
+                        double[] values = median(samples);
+                        current.put(name, values);
+                        System.out.println(format(name, values));
+                    }
+
+        write(results, current);
+
+        if (update)
+        {
+            write(baseline, current);
+            System.out.println("Baseline updated: " + baseline);
+            return;
+        }
+
+        if (!baseline.exists())
+        {
+            System.out.println("No baseline found at " + baseline + ", nothing to compare");
+            return;
+        }
+
+        List<String> regressions = compare(read(baseline), current, tolerance);
+        if (!regressions.isEmpty())
+        {
+            System.err.println("Performance regressions over " + (int) (tolerance * 100) + "% tolerance:");
+            regressions.forEach(r -> System.err.println("  " + r));
+            System.exit(1);
+        }
+
+        System.out.println("No regression over " + (int) (tolerance * 100) + "% tolerance, median of " + runs + " runs");
+    }
+
+    /**
+     * @return throughput (msg/s), send p50 and p99, round trip p50 and p99 (ms)
+     */
+    static double[] run(int threads, int messagesPerConnection, int messageSize, boolean tls) throws Exception
+    {
+        Properties props = new Properties();
+        props.put("mail.smtp.socketFactory", NoDelaySocketFactory.INSTANCE);
+        if (tls)
+        {
+            props.put("mail.smtp.starttls.enable", "true");
+            props.put("mail.smtp.ssl.trust", "*");
+            props.put("mail.smtp.starttls.required", "true");
+        }
+        Session session = Session.getInstance(props);
+
+        int port = freePort();
+
+        SuiteCollector collector = new SuiteCollector();
+        DeliveryTracker tracker = new DeliveryTracker(60, TimeUnit.SECONDS);
+        MessageReceiver receiver = new MessageReceiver(collector, tracker, MESSAGES, HOST, port, SendMessageTask.MESSAGE_ID_HEADER);
+        if (tls)
+            receiver.enableTLS();
+
+        receiver.start();
+        try
+        {
+            MimeMessage message = SMTPSampler.buildMessage(session, "test", "from@localhost", "to@localhost", messageSize, 1, null);
+            message.setHeader(SendMessageTask.BODY_CHECKSUM_HEADER, PayloadChecksum.of(message).toString());
+
+            TrafficClass trafficClass = new TrafficClass("suite", null, message,
+                    MESSAGES, messagesPerConnection, threads, 0);
+
+            collector.start();
+
+            List<SendMessageTask.Result> results = Collections.synchronizedList(new ArrayList<>());
+            SMTPSampler.sendMessages(
+                    Collections.singletonMap(trafficClass, collector), session, HOST, port,
+                    SendMessageTask.MESSAGE_ID_HEADER, tracker, null, null, (c, result) -> results.add(result), TimeUnit.MINUTES.toMillis(5));
+
+            collector.finishSend();
+
+            if (!receiver.awaitTermination(5, TimeUnit.MINUTES))
+                throw new Exception("Suite run not finished in time");
+
+            Map<Long,Long> before = new HashMap<>();
+            Map<Long,Long> after = new HashMap<>();
+            SMTPSampler.mergeSendTimes(results, before, after);
+            receiver.flushResults(before, after);
+
+            if (collector.failed > 0)
+                throw new Exception(collector.failed + " messages failed");
+
+            PayloadVerifier.Report integrity = receiver.integrityReport();
+            if (integrity.getVerified() != MESSAGES)
+                throw new Exception("Payload integrity: " + integrity.getCorrupted() + " corrupted, "
+                        + integrity.getTruncated() + " truncated, " + integrity.getUnverified() + " without checksum");
+
+            return collector.values();
+
+        } finally
+        {
+            receiver.stop();
+        }
+    }
+
+    /**
+     * @return median of every value over the runs
+     */
+    static double[] median(double[][] samples)
+    {
+        double[] result = new double[samples[0].length];
+        double[] column = new double[samples.length];
+        for (int v = 0; v < result.length; v++)
+        {
+            for (int i = 0; i < samples.length; i++)
+                column[i] = samples[i][v];
+
+            Arrays.sort(column);
+            int middle = column.length / 2;
+            result[v] = column.length % 2 == 1 ? column[middle] : (column[middle - 1] + column[middle]) / 2;
+        }
+        return result;
+    }
+
+    static List<String> compare(Map<String,double[]> baseline, Map<String,double[]> current, double tolerance)
+    {
+        String[] names = HEADER.split(",");
+
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String,double[]> entry : current.entrySet())
+        {
+            double[] base = baseline.get(entry.getKey());
+            if (base == null)
+                continue;
+
+            double[] values = entry.getValue();
+
+            /* Throughput: higher is better */
+            if (values[0] < base[0] * (1 - tolerance))
+                regressions.add(entry.getKey() + " " + names[1] + ": " + round(values[0]) + " < " + round(base[0]));
+
+            /* Latencies: lower is better */
+            for (int i = 1; i < values.length; i++)
+            {
+                if (values[i] > base[i] * (1 + tolerance) && values[i] - base[i] > LATENCY_SLACK_MS)
+                    regressions.add(entry.getKey() + " " + names[i + 1] + ": " + round(values[i]) + " > " + round(base[i]));
+            }
+        }
+
+        return regressions;
+    }
+
+    private static void setupKeyStore() throws Exception
+    {
+        if (System.getProperty("javax.net.ssl.keyStore") != null)
+            return;
+
+        File keystore = File.createTempFile("smtpsampler-suite", ".p12");
+        keystore.delete();
+        keystore.deleteOnExit();
+
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost", "-keyalg", "RSA",
+                "-keysize", "2048", "-validity", "3650", "-dname", "CN=localhost", "-storetype", "PKCS12",
+                "-keystore", keystore.getAbsolutePath(), "-storepass", "changeit", "-keypass", "changeit")
+            .inheritIO()
+            .start();
+
+        if (process.waitFor() != 0)
+            throw new Exception("Cannot generate suite keystore with " + keytool);
+
+        System.setProperty("javax.net.ssl.keyStore", keystore.getAbsolutePath());
+        System.setProperty("javax.net.ssl.keyStorePassword", "changeit");
+        System.setProperty("javax.net.ssl.keyStoreType", "PKCS12");
+    }
+
+    private static int freePort() throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static Map<String,double[]> read(File file) throws IOException
+    {
+        Map<String,double[]> result = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+        {
+            if (line.isEmpty() || line.startsWith("#") || line.equals(HEADER))
+                continue;
+
+            String[] fields = line.split(",");
+            double[] values = new double[fields.length - 1];
+            for (int i = 1; i < fields.length; i++)
+                values[i - 1] = Double.parseDouble(fields[i]);
+
+            result.put(fields[0], values);
+        }
+        return result;
+    }
+
+    private static void write(File file, Map<String,double[]> results) throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.write("# " + Runtime.getRuntime().availableProcessors() + " cores, " + System.getProperty("os.name") + " "
+                    + System.getProperty("os.arch") + ", java " + System.getProperty("java.version"));
+            writer.write('\n');
+            writer.write(HEADER);
+            writer.write('\n');
+            for (Map.Entry<String,double[]> entry : results.entrySet())
+            {
+                writer.write(format(entry.getKey(), entry.getValue()));
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static String format(String name, double[] values)
+    {
+        StringBuilder builder = new StringBuilder(name);
+        for (double value : values)
+            builder.append(',').append(round(value));
+        return builder.toString();
+    }
+
+    private static String round(double value)
+    {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Keeps every sample to compute percentiles, suite runs are small
+     */
+    private static final class SuiteCollector implements ResultCollector
+    {
+        private final DescriptiveStatistics sendTime = new SynchronizedDescriptiveStatistics();
+        private final DescriptiveStatistics roundTripTime = new SynchronizedDescriptiveStatistics();
+
+        private volatile long failed;
+        private long start;
+        private long sendEnd;
+
+        @Override
+        public void start()
+        {
+            start = System.nanoTime();
+        }
+
+        @Override
+        public void finishSend()
+        {
+            sendEnd = System.nanoTime();
+        }
+
+        @Override
+        public void finishReceive() {}
+
+        @Override
+        public void finished() {}
+
+        @Override
+        public synchronized void messageSent(long connectionId, int messageNumber, long time, String lastServerResponse, Throwable error)
+        {
+            if (error != null)
+                ++failed;
+            else
+                sendTime.addValue(time);
+        }
+
+        @Override
+        public void connectionHandled(long connectionId, long time, Throwable error) {}
+
+        @Override
+        public void messageReceived(long receivens, long beforesendns, long aftersendns)
+        {
+            roundTripTime.addValue(receivens - beforesendns);
+        }
+
+        double[] values()
+        {
+            final double ms = TimeUnit.MILLISECONDS.toNanos(1);
+            return new double[] {
+                sendTime.getN() * (double) TimeUnit.SECONDS.toNanos(1) / (sendEnd - start),
+                sendTime.getPercentile(50) / ms,
+                sendTime.getPercentile(99) / ms,
+                roundTripTime.getPercentile(50) / ms,
+                roundTripTime.getPercentile(99) / ms
+            };
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CredentialPoolTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File credentials(String... lines) throws Exception
+    {
+        File file = folder.newFile();
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    @Test
+    public void parsesFile() throws Exception
+    {
+        CredentialPool pool = CredentialPool.load(credentials(
+                "# test users",
+                "alice:secret",
+                "",
+                "bob:pass:with:colons",
+                "carol: spaced secret "),
+                CredentialPool.Selection.ROUNDROBIN, SMTPAuth.Mechanism.PLAIN);
+
+        assertEquals(3, pool.size());
+        assertEquals(SMTPAuth.Mechanism.PLAIN, pool.getMechanism());
+
+        CredentialPool.Credential alice = pool.next();
+        assertEquals("alice", alice.getUsername());
+        assertEquals("secret", alice.getSecret());
+
+        /* Split on the first colon only */
+        CredentialPool.Credential bob = pool.next();
+        assertEquals("bob", bob.getUsername());
+        assertEquals("pass:with:colons", bob.getSecret());
+
+        /* Secrets are verbatim */
+        assertEquals(" spaced secret ", pool.next().getSecret());
+    }
+
+    @Test
+    public void rejectsBadLines() throws Exception
+    {
+        try
+        {
+            CredentialPool.load(credentials("alice:secret", "bob"), CredentialPool.Selection.ROUNDROBIN, null);
+            fail("Line without secret accepted");
+        } catch (Exception expected)
+        {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("line 2"));
+        }
+
+        try
+        {
+            CredentialPool.load(credentials(":secret"), CredentialPool.Selection.ROUNDROBIN, null);
+            fail("Empty username accepted");
+        } catch (Exception expected)
+        {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("line 1"));
+        }
+    }
+
+    @Test
+    public void rejectsEmptyFiles() throws Exception
+    {
+        try
+        {
+            CredentialPool.load(credentials("# nobody", ""), CredentialPool.Selection.ROUNDROBIN, null);
+            fail("Empty file accepted");
+        } catch (Exception expected)
+        {
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith("No credential"));
+        }
+    }
+
+    @Test
+    public void roundRobin() throws Exception
+    {
+        CredentialPool pool = CredentialPool.load(credentials("a:1", "b:2", "c:3"), CredentialPool.Selection.ROUNDROBIN, null);
+
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 7; i++)
+            order.append(pool.next().getUsername());
+        assertEquals("abcabca", order.toString());
+    }
+
+    @Test
+    public void randomUsesEveryCredential() throws Exception
+    {
+        CredentialPool pool = CredentialPool.load(credentials("a:1", "b:2", "c:3"), CredentialPool.Selection.RANDOM, null);
+
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < 1000; i++)
+            seen.add(pool.next().getUsername());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), seen);
+    }
+
+    @Test
+    public void parsesSelection() throws Exception
+    {
+        assertEquals(CredentialPool.Selection.RANDOM, CredentialPool.parseSelection(" Random "));
+        try
+        {
+            CredentialPool.parseSelection("sequential");
+            fail("Unknown selection accepted");
+        } catch (Exception expected)
+        {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("roundrobin or random"));
+        }
+    }
+}
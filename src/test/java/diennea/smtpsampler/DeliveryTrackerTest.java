@@ -0,0 +1,143 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class DeliveryTrackerTest
+{
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void arrivalBeforeDeadlineIsDelivered() throws Exception
+    {
+        DeliveryTracker tracker = new DeliveryTracker(10, TimeUnit.SECONDS);
+        tracker.register(1);
+        tracker.arrived(1);
+
+        DeliveryTracker.Report report = tracker.report();
+        assertEquals(1, report.getDelivered());
+        assertEquals(0, report.getLate());
+        assertEquals(0, report.getLost());
+        assertEquals(0, report.getPending());
+        assertTrue(tracker.awaitCompletion(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void expiredMessagesAreLostUntilTheyArrive()
+    {
+        DeliveryTracker tracker = new DeliveryTracker(1, TimeUnit.SECONDS);
+        for (long id = 1; id <= 5; id++)
+            tracker.register(id);
+
+        tracker.advance(System.nanoTime() + 2 * SECOND);
+
+        DeliveryTracker.Report report = tracker.report();
+        assertEquals(5, report.getLost());
+        assertEquals(0, report.getPending());
+        assertEquals(1, report.getMissingRanges().size());
+        assertArrayEquals(new long[] { 1, 5 }, report.getMissingRanges().get(0));
+
+        tracker.arrived(3);
+
+        report = tracker.report();
+        assertEquals(1, report.getLate());
+        assertEquals(4, report.getLost());
+        assertEquals(2, report.getMissingRanges().size());
+        assertArrayEquals(new long[] { 1, 2 }, report.getMissingRanges().get(0));
+        assertArrayEquals(new long[] { 4, 5 }, report.getMissingRanges().get(1));
+    }
+
+    @Test
+    public void unexpectedArrivalsDoNotShrinkLost()
+    {
+        DeliveryTracker tracker = new DeliveryTracker(1, TimeUnit.SECONDS);
+        tracker.register(1);
+        tracker.register(2);
+        tracker.register(3);
+        tracker.cancel(3);
+
+        tracker.advance(System.nanoTime() + 2 * SECOND);
+
+        tracker.arrived(1);
+        tracker.arrived(1);
+        tracker.arrived(3);
+        tracker.arrived(42);
+
+        DeliveryTracker.Report report = tracker.report();
+        assertEquals(0, report.getDelivered());
+        assertEquals(1, report.getLate());
+        assertEquals(1, report.getLost());
+        assertEquals(3, report.getDuplicates());
+    }
+
+    @Test
+    public void duplicateOfDeliveredMessageIsNotLate()
+    {
+        DeliveryTracker tracker = new DeliveryTracker(1, TimeUnit.SECONDS);
+        tracker.register(1);
+        tracker.arrived(1);
+        tracker.advance(System.nanoTime() + 2 * SECOND);
+        tracker.arrived(1);
+
+        DeliveryTracker.Report report = tracker.report();
+        assertEquals(1, report.getDelivered());
+        assertEquals(0, report.getLate());
+        assertEquals(0, report.getLost());
+        assertEquals(1, report.getDuplicates());
+    }
+
+    @Test
+    public void entriesDueInLaterRoundsStayPending()
+    {
+        /* Longer than a whole turn of the wheel, 1024 ticks of 100 ms */
+        DeliveryTracker tracker = new DeliveryTracker(250, TimeUnit.SECONDS);
+        tracker.register(1);
+
+        long now = System.nanoTime();
+        tracker.advance(now + 120 * SECOND);
+        assertEquals(1, tracker.report().getPending());
+
+        tracker.advance(now + 240 * SECOND);
+        assertEquals(1, tracker.report().getPending());
+
+        tracker.advance(now + 260 * SECOND);
+        DeliveryTracker.Report report = tracker.report();
+        assertEquals(0, report.getPending());
+        assertEquals(1, report.getLost());
+    }
+
+    @Test
+    public void awaitCompletionTimesOutWithPendingMessages() throws Exception
+    {
+        DeliveryTracker tracker = new DeliveryTracker(10, TimeUnit.SECONDS);
+        tracker.register(1);
+
+        assertFalse(tracker.awaitCompletion(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, tracker.report().getPending());
+    }
+}
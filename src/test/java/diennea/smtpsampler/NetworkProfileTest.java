@@ -0,0 +1,88 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class NetworkProfileTest
+{
+    @Test
+    public void parsesEverySetting() throws Exception
+    {
+        NetworkProfile profile = NetworkProfile.parse("latency=40, jitter=5,bandwidth=20mbit,stall=0.001,stallms=300");
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(40), profile.getLatencyNanos());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), profile.getJitterNanos());
+        assertEquals(20_000_000L, profile.getBitsPerSecond());
+        assertEquals(0.001, profile.getStallProbability(), 0);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(300), profile.getStallNanos());
+    }
+
+    @Test
+    public void defaults() throws Exception
+    {
+        NetworkProfile profile = NetworkProfile.parse("latency=10");
+        assertEquals(0, profile.getJitterNanos());
+        assertEquals(0, profile.getBitsPerSecond());
+        assertEquals(0, profile.getStallProbability(), 0);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), profile.getStallNanos());
+    }
+
+    @Test
+    public void bandwidthSuffixes() throws Exception
+    {
+        assertEquals(64_000L, NetworkProfile.parse("bandwidth=64000").getBitsPerSecond());
+        assertEquals(512_000L, NetworkProfile.parse("bandwidth=512kbit").getBitsPerSecond());
+        assertEquals(1_500_000L, NetworkProfile.parse("bandwidth=1.5Mbit").getBitsPerSecond());
+        assertEquals(10_000_000_000L, NetworkProfile.parse("bandwidth=10gbit").getBitsPerSecond());
+    }
+
+    @Test
+    public void rejectsBareSuffix()
+    {
+        assertRejected("bandwidth=mbit", "bandwidth 'mbit'");
+    }
+
+    @Test
+    public void rejectsBadSettings()
+    {
+        assertRejected("latency", "expected key=value");
+        assertRejected("delay=40", "Unknown network profile setting 'delay'");
+        assertRejected("latency=fast", "latency=fast");
+        assertRejected("bandwidth=20mbps", "bandwidth=20mbps");
+    }
+
+    private static void assertRejected(String spec, String message)
+    {
+        try
+        {
+            NetworkProfile.parse(spec);
+            fail("Accepted " + spec);
+        } catch (Exception expected)
+        {
+            assertTrue(expected.getMessage(), expected.getMessage().contains(message));
+        }
+    }
+}
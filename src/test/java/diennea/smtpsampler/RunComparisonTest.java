@@ -0,0 +1,86 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.random.Well19937c;
+import org.junit.Test;
+
+public class RunComparisonTest
+{
+    private static final int SAMPLES = 1000;
+
+    /**
+     * @return send times like samples, log-normal around given median in ms
+     */
+    private static double[] sendTimes(RandomGenerator random, double median)
+    {
+        double[] samples = new double[SAMPLES];
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = median * Math.exp(0.5 * random.nextGaussian());
+        return samples;
+    }
+
+    @Test
+    public void sameDistributionHasNoVerdict()
+    {
+        RandomGenerator random = new Well19937c(42);
+        RunComparison comparison = new RunComparison(2000, 0.05, 1);
+
+        assertEquals(RunComparison.NO_DIFFERENCE,
+                comparison.compare("Send time", "ms", sendTimes(random, 10), sendTimes(random, 10), false));
+    }
+
+    @Test
+    public void shiftedDistributionIsARegression()
+    {
+        RandomGenerator random = new Well19937c(42);
+        RunComparison comparison = new RunComparison(2000, 0.05, 1);
+
+        /* 10% slower */
+        assertEquals(RunComparison.REGRESSED,
+                comparison.compare("Send time", "ms", sendTimes(random, 10), sendTimes(random, 11), false));
+
+        /* Lower throughput */
+        assertEquals(RunComparison.REGRESSED,
+                comparison.compare("Throughput", "msg/s", sendTimes(random, 100), sendTimes(random, 90), true));
+    }
+
+    @Test
+    public void shiftedDistributionIsAnImprovement()
+    {
+        RandomGenerator random = new Well19937c(42);
+        RunComparison comparison = new RunComparison(2000, 0.05, 1);
+
+        assertEquals(RunComparison.IMPROVED,
+                comparison.compare("Send time", "ms", sendTimes(random, 10), sendTimes(random, 9), false));
+    }
+
+    @Test
+    public void tooFewSamples()
+    {
+        RunComparison comparison = new RunComparison(2000, 0.05, 1);
+
+        assertEquals(RunComparison.NOT_ENOUGH_SAMPLES,
+                comparison.compare("Send time", "ms", new double[] { 1 }, new double[] { 1, 2 }, false));
+    }
+}
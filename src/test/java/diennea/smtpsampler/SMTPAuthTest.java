@@ -0,0 +1,136 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+
+import org.junit.Test;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+public class SMTPAuthTest
+{
+    /** RFC 2195 example */
+    private static final String CRAM_MD5_CHALLENGE = "PDE4OTYuNjk3MTcwOTUyQHBvc3RvZmZpY2UucmVzdG9uLm1jaS5uZXQ+";
+
+    /**
+     * Transport replaying server responses, one for every command
+     */
+    private static final class ScriptedTransport extends SMTPTransport
+    {
+        final List<String> commands = new ArrayList<>();
+        final Deque<String> responses;
+        String last;
+
+        ScriptedTransport(String... responses)
+        {
+            super(Session.getInstance(new Properties()), new URLName("smtp://localhost"));
+            this.responses = new ArrayDeque<>(Arrays.asList(responses));
+        }
+
+        @Override
+        public synchronized int simpleCommand(String command) throws MessagingException
+        {
+            commands.add(command);
+            last = responses.remove();
+            return Integer.parseInt(last.substring(0, 3));
+        }
+
+        @Override
+        public synchronized String getLastServerResponse()
+        {
+            return last;
+        }
+    }
+
+    @Test
+    public void cramMD5KnownVector() throws Exception
+    {
+        assertEquals("dGltIGI5MTNhNjAyYzdlZGE3YTQ5NWI0ZTZlNzMzNGQzODkw",
+                SMTPAuth.cramMD5("tim", "tanstaaftanstaaf", CRAM_MD5_CHALLENGE));
+    }
+
+    @Test
+    public void plain()
+    {
+        /* RFC 4616 example */
+        assertEquals("AHRpbQB0YW5zdGFhZnRhbnN0YWFm", SMTPAuth.plain("tim", "tanstaaftanstaaf"));
+    }
+
+    @Test
+    public void login()
+    {
+        assertEquals("dGlt", SMTPAuth.base64("tim"));
+        assertEquals("dGFuc3RhYWZ0YW5zdGFhZg==", SMTPAuth.base64("tanstaaftanstaaf"));
+    }
+
+    @Test
+    public void xoauth2()
+    {
+        assertEquals("dXNlcj1zb21ldXNlckBleGFtcGxlLmNvbQFhdXRoPUJlYXJlciB5YTI5LnZGOWRmdDRxbVRjMk52YjNSbGNrQmhkSFJoZG1semRHRXVZMjl0Q2cBAQ==",
+                SMTPAuth.xoauth2("someuser@example.com", "ya29.vF9dft4qmTc2Nvb3RlckBhdHRhdmlzdGEuY29tCg"));
+    }
+
+    @Test
+    public void loginDialogue() throws Exception
+    {
+        ScriptedTransport transport = new ScriptedTransport("334 VXNlcm5hbWU6", "334 UGFzc3dvcmQ6", "235 2.7.0 Authentication successful");
+        SMTPAuth.authenticate(transport, SMTPAuth.Mechanism.LOGIN, "tim", "tanstaaftanstaaf");
+
+        assertEquals(Arrays.asList("AUTH LOGIN", "dGlt", "dGFuc3RhYWZ0YW5zdGFhZg=="), transport.commands);
+    }
+
+    @Test
+    public void cramMD5Dialogue() throws Exception
+    {
+        ScriptedTransport transport = new ScriptedTransport("334 " + CRAM_MD5_CHALLENGE + "\r\n", "235 2.7.0 Authentication successful");
+        SMTPAuth.authenticate(transport, SMTPAuth.Mechanism.CRAM_MD5, "tim", "tanstaaftanstaaf");
+
+        assertEquals(Arrays.asList("AUTH CRAM-MD5", "dGltIGI5MTNhNjAyYzdlZGE3YTQ5NWI0ZTZlNzMzNGQzODkw"), transport.commands);
+    }
+
+    @Test
+    public void xoauth2ErrorChallenge() throws Exception
+    {
+        /* Errors come as a challenge answered with an empty line */
+        ScriptedTransport transport = new ScriptedTransport("334 eyJzdGF0dXMiOiI0MDEifQ==", "535 5.7.8 Username and Password not accepted");
+        try
+        {
+            SMTPAuth.authenticate(transport, SMTPAuth.Mechanism.XOAUTH2, "someuser@example.com", "expired");
+            fail("Rejected token authenticated");
+        } catch (AuthenticationFailedException expected)
+        {
+            assertEquals("", transport.commands.get(1));
+        }
+    }
+}
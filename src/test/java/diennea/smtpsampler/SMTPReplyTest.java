@@ -0,0 +1,138 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.SocketException;
+import java.net.UnknownHostException;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Test;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+public class SMTPReplyTest
+{
+    @Test
+    public void enhancedStatusCode()
+    {
+        SMTPReply reply = SMTPReply.parse("250 2.0.0 Ok: queued as 4A1B2C", null);
+        assertEquals(250, reply.getCode());
+        assertEquals("2.0.0", reply.getEnhancedStatus());
+        assertEquals("250 2.0.0", reply.getKey());
+        assertFalse(reply.isDeferral());
+    }
+
+    @Test
+    public void replyWithoutEnhancedStatusCode()
+    {
+        SMTPReply reply = SMTPReply.parse("421 mx.example.com Service not available", null);
+        assertEquals(421, reply.getCode());
+        assertNull(reply.getEnhancedStatus());
+        assertEquals("421", reply.getKey());
+        assertTrue(reply.isDeferral());
+    }
+
+    @Test
+    public void multiLineReply()
+    {
+        SMTPReply reply = SMTPReply.parse("452-4.3.1 Insufficient system storage\r\n452 4.3.1 Try again later\r\n", null);
+        assertEquals(452, reply.getCode());
+        assertEquals("4.3.1", reply.getEnhancedStatus());
+        assertTrue(reply.isDeferral());
+
+        /* EHLO continuation lines carry keywords, not status codes */
+        reply = SMTPReply.parse("250-mx.example.com\r\n250-PIPELINING\r\n250 8BITMIME", null);
+        assertEquals(250, reply.getCode());
+        assertNull(reply.getEnhancedStatus());
+    }
+
+    @Test
+    public void nullResponse()
+    {
+        SMTPReply reply = SMTPReply.parse(null, null);
+        assertEquals(SMTPReply.UNKNOWN, reply.getCode());
+        assertEquals("other error", reply.getKey());
+        assertFalse(reply.isDeferral());
+
+        assertEquals(SMTPReply.UNKNOWN, SMTPReply.parse("garbage", null).getCode());
+    }
+
+    @Test
+    public void rejectionCarriesItsOwnResponse()
+    {
+        /* The last response read may belong to another command */
+        SMTPSendFailedException rejected = new SMTPSendFailedException("DATA", 451,
+                "451 4.3.0 Temporary local problem", null, new Address[0], new Address[0], new Address[0]);
+        SMTPReply reply = SMTPReply.parse("250 2.1.5 Ok", rejected);
+        assertEquals(451, reply.getCode());
+        assertEquals("4.3.0", reply.getEnhancedStatus());
+        assertTrue(reply.isDeferral());
+    }
+
+    @Test
+    public void chainedRejection() throws Exception
+    {
+        MessagingException error = new MessagingException("Invalid Addresses",
+                new SMTPAddressFailedException(new InternetAddress("nobody@example.com"), "RCPT TO", 550,
+                        "550 5.1.1 <nobody@example.com>: Recipient address rejected"));
+        SMTPReply reply = SMTPReply.parse(null, error);
+        assertEquals(550, reply.getCode());
+        assertEquals("5.1.1", reply.getEnhancedStatus());
+        assertFalse(reply.isDeferral());
+    }
+
+    @Test
+    public void droppedConnection()
+    {
+        SMTPReply reply = SMTPReply.parse(null, new MessagingException("Exception reading response",
+                new SocketException("Connection reset")));
+        assertEquals(SMTPReply.DROPPED, reply.getCode());
+        assertEquals("dropped", reply.getKey());
+        assertTrue(reply.isDeferral());
+    }
+
+    @Test
+    public void exceptionOnlyFailures()
+    {
+        /* Greeting failures come as text */
+        SMTPReply reply = SMTPReply.parse(null,
+                new MessagingException("Could not connect to SMTP host: localhost, port: 25, response: 421"));
+        assertEquals(421, reply.getCode());
+        assertTrue(reply.isDeferral());
+
+        reply = SMTPReply.parse(null, new MessagingException("Unknown SMTP host: nowhere",
+                new UnknownHostException("nowhere")));
+        assertEquals(SMTPReply.UNKNOWN, reply.getCode());
+        assertFalse(reply.isDeferral());
+
+        reply = SMTPReply.parse(null, new IllegalStateException("Not connected"));
+        assertEquals(SMTPReply.UNKNOWN, reply.getCode());
+        assertFalse(reply.isDeferral());
+    }
+}
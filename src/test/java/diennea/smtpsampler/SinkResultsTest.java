@@ -0,0 +1,135 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package diennea.smtpsampler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SinkResultsTest
+{
+    /** Multibyte characters, to be split across file reads */
+    private static final String RUN_ID = "prova-è€";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Round trip times reported to a class collector, by before send time
+     */
+    private static final class RoundTrips implements ResultCollector
+    {
+        final Map<Long,Long> received = new HashMap<>();
+
+        @Override
+        public void start() {}
+
+        @Override
+        public void finishSend() {}
+
+        @Override
+        public void finishReceive() {}
+
+        @Override
+        public void finished() {}
+
+        @Override
+        public void messageSent(long connectionId, int messageNumber, long time, String lastServerResponse, Throwable error) {}
+
+        @Override
+        public void connectionHandled(long connectionId, long time, Throwable error) {}
+
+        @Override
+        public void messageReceived(long receivens, long beforesendns, long aftersendns)
+        {
+            received.put(beforesendns, receivens - beforesendns);
+        }
+    }
+
+    @Test
+    public void mergesEveryClassInOnePass() throws Exception
+    {
+        File file = folder.newFile();
+        Map<Long,Long> firstBefore = new HashMap<>();
+        Map<Long,Long> secondBefore = new HashMap<>();
+
+        /* Enough records for lines, and characters of the run ID, to straddle 64 KB reads */
+        int messages = 10_000;
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.write(DeliverySink.RECORD_HEADER + "\n");
+            writer.write("another-run,0,0,0,0,1\n");
+            for (long id = 0; id < messages; id++)
+            {
+                (id % 2 == 0 ? firstBefore : secondBefore).put(id, id * 1000);
+                writer.write(RUN_ID + "," + id + ",0,0,0," + (id + 1) + "\n");
+            }
+        }
+
+        RoundTrips first = new RoundTrips();
+        RoundTrips second = new RoundTrips();
+        long merged = SinkResults.merge(file, RUN_ID, Arrays.asList(
+                new SinkResults.Sent(firstBefore, firstBefore, first),
+                new SinkResults.Sent(secondBefore, secondBefore, second)), 0);
+
+        assertEquals(messages, merged);
+        assertEquals(messages / 2, first.received.size());
+        assertEquals(messages / 2, second.received.size());
+        for (long id = 0; id < messages; id++)
+            assertEquals(Long.valueOf(id + 1), (id % 2 == 0 ? first : second).received.get(id * 1000));
+    }
+
+    @Test
+    public void estimatedOffsetSpansEveryClass() throws Exception
+    {
+        File file = folder.newFile();
+        Files.write(file.toPath(), Arrays.asList(
+                RUN_ID + ",1,0,0,,500",
+                RUN_ID + ",2,0,0,,200",
+                RUN_ID + ",3,0,0,,900"), StandardCharsets.UTF_8);
+
+        Map<Long,Long> firstBefore = new HashMap<>();
+        firstBefore.put(1L, 10L);
+        Map<Long,Long> secondBefore = new HashMap<>();
+        secondBefore.put(2L, 20L);
+        secondBefore.put(3L, 30L);
+
+        RoundTrips first = new RoundTrips();
+        RoundTrips second = new RoundTrips();
+        SinkResults.merge(file, RUN_ID, Arrays.asList(
+                new SinkResults.Sent(firstBefore, firstBefore, first),
+                new SinkResults.Sent(secondBefore, secondBefore, second)), 0);
+
+        /* The fastest message of the whole run travelled in no time */
+        assertEquals(Long.valueOf(300), first.received.get(10L));
+        assertEquals(Long.valueOf(0), second.received.get(20L));
+        assertEquals(Long.valueOf(700), second.received.get(30L));
+    }
+}